@@ -24,6 +24,11 @@ fi
 JAVA="java ${JAVA_TOOL_OPTIONS}"
 unset JAVA_TOOL_OPTIONS
 
+# use the class data sharing archive built by 'mvn -Pcds package'
+if [ -f target/smpc_rsa_proxy.jsa ]; then
+    JAVA="$JAVA -XX:SharedArchiveFile=target/smpc_rsa_proxy.jsa"
+fi
+
 for i in $(seq $MAX_ROUNDS); do
     printf "TEST $i: "
    
@@ -0,0 +1,210 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.smartcardio.CommandAPDU;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link HostPathBenchmark} class contains JMH benchmarks of the host-side
+ * conversion and APDU construction code executed on every request.
+ *
+ * @author Lukas Zaoral
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostPathBenchmark {
+
+    private static final byte CLA = (byte) 0x80;
+    private static final byte INS = 0x10;
+    private static final byte P1 = 0x00;
+
+    /**
+     * Proxy without a card used to call the protected methods
+     */
+    private static class OfflineProxy extends AbstractProxy {
+
+        OfflineProxy() {
+            super(new CardManager(new byte[0]));
+        }
+
+        @Override
+        public void generateKeys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void signMessage() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Random numbers of the given size
+     */
+    @State(Scope.Thread)
+    public static class Data {
+
+        @Param({"2048", "4096"})
+        int bits;
+
+        byte[] num;
+        byte[] numLeadingZero;
+        String hex;
+        OfflineProxy proxy;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random rnd = new Random(bits);
+
+            num = new byte[bits / 8];
+            rnd.nextBytes(num);
+            num[0] |= 0x80;
+
+            numLeadingZero = num.clone();
+            numLeadingZero[0] = 0x00;
+
+            hex = Util.toHex(num);
+            proxy = new OfflineProxy();
+        }
+
+    }
+
+    /**
+     * Key file with a 2048-bit partial modulus, the only size accepted by {@code loadFile}
+     */
+    @State(Scope.Thread)
+    public static class KeyFile {
+
+        @Param({"hex", "binary"})
+        String format;
+
+        File file;
+        OfflineProxy proxy;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Random rnd = new Random(AbstractProxy.PARTIAL_MODULUS_LENGTH);
+
+            byte[] n = new byte[AbstractProxy.PARTIAL_MODULUS_LENGTH];
+            rnd.nextBytes(n);
+            n[0] |= 0x80;
+
+            byte[] d = n.clone();
+            d[0] = 0x7F;
+
+            file = File.createTempFile("smpc_rsa_bench", ".key");
+            if (format.equals("binary"))
+                DataFile.writeBinary(file.getPath(), 8 * AbstractProxy.PARTIAL_MODULUS_LENGTH, d, n);
+            else
+                DataFile.writeHex(file.getPath(), Util.toHex(d), Util.toHex(n));
+
+            // recently modified files are not cached
+            file.setLastModified(System.currentTimeMillis() - 60000);
+
+            proxy = new OfflineProxy();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+        }
+
+    }
+
+    @Benchmark
+    public String toHex(Data data) {
+        return Util.toHex(data.num);
+    }
+
+    @Benchmark
+    public String toHexTrimmed(Data data) {
+        return Util.toHexTrimmed(data.numLeadingZero);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray(Data data) {
+        return Util.hexStringToByteArray(data.hex);
+    }
+
+    @Benchmark
+    public List<CommandAPDU> splitArrayToCmd(Data data) {
+        return data.proxy.splitArrayToCmd(data.num, CLA, INS, P1);
+    }
+
+    @Benchmark
+    public void loadFile(KeyFile key, Blackhole bh) throws IOException {
+        List<CommandAPDU> cmdA = new ArrayList<>();
+        List<CommandAPDU> cmdB = new ArrayList<>();
+
+        key.proxy.loadFile(key.file.getPath(), cmdA, cmdB, CLA, INS, (byte) 0x00, (byte) 0x01);
+
+        bh.consume(cmdA);
+        bh.consume(cmdB);
+    }
+
+    @Benchmark
+    public void loadFileUncached(KeyFile key, Blackhole bh) throws IOException {
+        KeyFileCache.getInstance().clear();
+        loadFile(key, bh);
+    }
+
+    /**
+     * Runs the benchmarks with the GC profiler to report the allocation rate.
+     * Any JMH command-line options may be given to override the defaults.
+     *
+     * @param args JMH command-line options
+     * @throws RunnerException             if the benchmark fails
+     * @throws CommandLineOptionException if the options cannot be parsed
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(HostPathBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .build()
+        ).run();
+    }
+
+}
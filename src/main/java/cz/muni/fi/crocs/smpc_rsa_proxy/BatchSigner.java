@@ -0,0 +1,429 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.MessageEncoder;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractClientProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ServerProxy;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * The {@link BatchSigner} class signs many messages over a single
+ * card connection.
+ * <p>
+ * The client modes read one hex message per line. The server mode reads
+ * records of two lines, the message and the client signature share, i.e.
+ * the output of the client batch. The results are written incrementally
+ * as records of two lines, the message and the signature, in the same
+ * format as the {@code client.sig} and {@code final.sig} files.
+ * <p>
+ * With a {@link MessageEncoder}, the client modes read one document file name per line
+ * instead. The documents are hashed in parallel on a {@link ForkJoinPool} with a thread per
+ * core ahead of the card and the encoded messages are signed in the input order.
+ * <p>
+ * In the pipelined mode, the input is parsed and the commands are built
+ * by the reader thread and the results are encoded and written by the writer
+ * thread, so the card does not wait for the host.
+ *
+ * @author Lukas Zaoral
+ */
+public class BatchSigner {
+
+    /**
+     * Input file name representing the standard input
+     */
+    public static final String STDIN = "-";
+
+    /**
+     * Number of requests prepared in advance in the pipelined mode
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * Number of documents hashed in advance per hashing thread
+     */
+    private static final int DIGESTS_PER_THREAD = 4;
+
+    /**
+     * The {@link CardCall} interface represents the card stage of a request.
+     */
+    @FunctionalInterface
+    private interface CardCall {
+        byte[] run() throws CardException;
+    }
+
+    /**
+     * The {@link Job} class represents a single request.
+     */
+    private static class Job {
+        final String message;
+        final CardCall call;
+        byte[] signature;
+
+        Job(String message, CardCall call) {
+            this.message = message;
+            this.call = call;
+        }
+    }
+
+    /**
+     * End of the queue marker
+     */
+    private static final Job END = new Job(null, null);
+
+    private final AbstractProxy proxy;
+    private final MessageEncoder encoder;
+    private final Deque<CompletableFuture<byte[]>> digests = new ArrayDeque<>();
+    private ForkJoinPool digesters = null;
+
+    /**
+     * Creates a batch signer using the given connected {@code proxy}.
+     *
+     * @param proxy connected proxy
+     */
+    public BatchSigner(AbstractProxy proxy) {
+        this(proxy, null);
+    }
+
+    /**
+     * Creates a batch signer of the documents using the given connected client {@code proxy}.
+     *
+     * @param proxy   connected proxy
+     * @param encoder encoder of the documents or null if the input contains the messages
+     * @throws IllegalArgumentException if the documents should be signed in the server mode
+     */
+    public BatchSigner(AbstractProxy proxy, MessageEncoder encoder) {
+        if (encoder != null && !(proxy instanceof AbstractClientProxy))
+            throw new IllegalArgumentException("Only the client modes can sign the documents.");
+
+        this.proxy = proxy;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Signs all messages from the {@code input} file and writes the signatures
+     * to the {@code output} file.
+     *
+     * @param input     input file name or {@code STDIN}
+     * @param output    output file name
+     * @param pipelined true if the host-side work should run in parallel with the card
+     * @return number of signed messages
+     * @throws IOException   if the input cannot be read or has a wrong format
+     *                       or the output cannot be created or written to
+     * @throws CardException if something on the smart card fails
+     */
+    public int run(String input, String output, boolean pipelined) throws IOException, CardException {
+        proxy.setQuiet(true);
+        if (encoder != null)
+            digesters = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        try (InputStream in = input.equals(STDIN) ? System.in : new FileInputStream(input);
+             OutputStream out = new FileOutputStream(output)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+
+            return pipelined ? runPipelined(reader, writer, input) : runSerial(reader, writer, input);
+        } finally {
+            proxy.setQuiet(false);
+            if (digesters != null) {
+                digesters.shutdownNow();
+                digesters = null;
+                digests.clear();
+            }
+        }
+    }
+
+    /**
+     * Processes the requests one after another.
+     *
+     * @param reader input reader
+     * @param writer output writer
+     * @param input  input file name
+     * @return number of signed messages
+     * @throws IOException   if the input cannot be read or has a wrong format
+     *                       or the output cannot be written to
+     * @throws CardException if something on the smart card fails
+     */
+    private int runSerial(BufferedReader reader, BufferedWriter writer, String input)
+            throws IOException, CardException {
+        int count = 0;
+
+        Job job;
+        while ((job = prepare(reader, input)) != null) {
+            job.signature = job.call.run();
+            write(writer, job);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Processes the requests in three stages. The reader thread prepares the requests,
+     * the current thread communicates with the card and the writer thread writes
+     * the results.
+     *
+     * @param reader input reader
+     * @param writer output writer
+     * @param input  input file name
+     * @return number of signed messages
+     * @throws IOException   if the input cannot be read or has a wrong format
+     *                       or the output cannot be written to
+     * @throws CardException if something on the smart card fails
+     */
+    private int runPipelined(BufferedReader reader, BufferedWriter writer, String input)
+            throws IOException, CardException {
+        BlockingQueue<Job> prepared = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Job> done = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        int[] count = new int[1];
+
+        Thread readerThread = new Thread(() -> {
+            try {
+                Job job;
+                while ((job = prepare(reader, input)) != null) {
+                    if (!offer(prepared, job, failure))
+                        return;
+                }
+
+                offer(prepared, END, failure);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } catch (InterruptedException e) {
+                // the signing has been stopped
+            }
+        }, "batch-reader");
+
+        Thread writerThread = new Thread(() -> {
+            boolean failed = false;
+            try {
+                Job job;
+                while ((job = done.take()) != END) {
+                    // keep draining the queue after a failed write
+                    if (failed)
+                        continue;
+
+                    try {
+                        write(writer, job);
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                        failed = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, new InterruptedIOException("Writing interrupted."));
+            }
+        }, "batch-writer");
+
+        readerThread.setDaemon(true);
+        writerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+
+        try {
+            try {
+                // the reader stops without the END marker if anything fails
+                while (failure.get() == null) {
+                    Job job = prepared.poll(100, TimeUnit.MILLISECONDS);
+                    if (job == END)
+                        break;
+
+                    if (job == null)
+                        continue;
+
+                    job.signature = job.call.run();
+                    done.put(job);
+                }
+            } catch (CardException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+
+            // let the writer store all finished results
+            done.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, new InterruptedIOException("Signing interrupted."));
+            writerThread.interrupt();
+        } finally {
+            readerThread.interrupt();
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+
+        if (e instanceof CardException)
+            throw (CardException) e;
+
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+
+        return count[0];
+    }
+
+    /**
+     * Puts the {@code job} to the {@code queue} unless some stage fails.
+     *
+     * @param queue   queue
+     * @param job     request
+     * @param failure failure of any stage
+     * @return true if the request has been queued, false if some stage has failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static boolean offer(BlockingQueue<Job> queue, Job job, AtomicReference<Exception> failure)
+            throws InterruptedException {
+        while (!queue.offer(job, 100, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads and prepares the next request. In the server mode, both the message
+     * and the client signature share are read.
+     *
+     * @param reader input reader
+     * @param input  input file name
+     * @return prepared request or null at the end of the input
+     * @throws IOException if the input cannot be read or has a wrong format
+     */
+    private Job prepare(BufferedReader reader, String input) throws IOException {
+        if (encoder != null)
+            return prepareDocument(reader);
+
+        String message = nextLine(reader);
+        if (message == null)
+            return null;
+
+        if (proxy instanceof AbstractClientProxy) {
+            AbstractClientProxy client = (AbstractClientProxy) proxy;
+            List<CommandAPDU> cmds = client.prepareMessage(Util.hexStringToByteArray(message));
+            return new Job(message, () -> client.signPrepared(cmds));
+        }
+
+        String clientSignature = nextLine(reader);
+        if (clientSignature == null)
+            throw new IOException(String.format("Wrong '%s' file format.", input));
+
+        ServerProxy server = (ServerProxy) proxy;
+        ServerProxy.SignCommands cmds = server.prepareSignature(Util.hexStringToByteArray(message),
+                Util.hexStringToByteArray(clientSignature));
+        return new Job(message, () -> server.signPrepared(cmds));
+    }
+
+    /**
+     * Hashes the documents ahead in parallel and prepares the request
+     * of the next document in the input order.
+     *
+     * @param reader input reader
+     * @return prepared request or null at the end of the input
+     * @throws IOException if the input or the document cannot be read
+     */
+    private Job prepareDocument(BufferedReader reader) throws IOException {
+        String fileName;
+        while (digests.size() < DIGESTS_PER_THREAD * digesters.getParallelism()
+                && (fileName = nextLine(reader)) != null)
+            digests.add(CompletableFuture.supplyAsync(digest(fileName), digesters));
+
+        CompletableFuture<byte[]> next = digests.poll();
+        if (next == null)
+            return null;
+
+        byte[] message;
+        try {
+            message = next.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Hashing interrupted.");
+        }
+
+        AbstractClientProxy client = (AbstractClientProxy) proxy;
+        List<CommandAPDU> cmds = client.prepareMessage(message);
+        return new Job(Util.toHex(message), () -> client.signPrepared(cmds));
+    }
+
+    /**
+     * Returns the hashing task of the {@code fileName} document.
+     *
+     * @param fileName file name of the document
+     * @return task returning the encoded message
+     */
+    private Supplier<byte[]> digest(String fileName) {
+        return () -> {
+            try {
+                return encoder.encodeFile(fileName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(new IOException(
+                        String.format("The document '%s' cannot be read.", fileName), e));
+            }
+        };
+    }
+
+    /**
+     * Writes the result of the given {@code job}.
+     *
+     * @param writer output writer
+     * @param job    finished request
+     * @throws IOException if the output cannot be written to
+     */
+    private void write(BufferedWriter writer, Job job) throws IOException {
+        String signature = proxy instanceof ServerProxy ? Util.toHex(job.signature) : Util.toHexTrimmed(job.signature);
+        writer.write(String.format("%s%n%s%n", job.message, signature));
+        writer.flush();
+    }
+
+    /**
+     * Reads the next non-empty line.
+     *
+     * @param reader input reader
+     * @return trimmed line or null at the end of the input
+     * @throws IOException if the input cannot be read
+     */
+    private static String nextLine(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty())
+                return line;
+        }
+
+        return null;
+    }
+
+}
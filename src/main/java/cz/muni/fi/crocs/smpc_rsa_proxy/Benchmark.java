@@ -0,0 +1,205 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+
+import javax.smartcardio.CardException;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The {@link Benchmark} class runs the reset/generate/sign rounds
+ * of the {@code *_test.sh} scripts against a single connected proxy
+ * and reports the latencies of each phase.
+ * <p>
+ * Similarly to the scripts, failed key generation is counted
+ * and the rest of such round is skipped. Any other failure aborts
+ * the benchmark.
+ *
+ * @author Lukas Zaoral
+ */
+public class Benchmark {
+
+    /**
+     * Default number of rounds
+     */
+    public static final int DEFAULT_ROUNDS = 1000;
+
+    /**
+     * Reported percentiles
+     */
+    private static final int[] PERCENTILES = {50, 95, 99};
+
+    private final AbstractProxy proxy;
+    private final String mode;
+    private final int rounds;
+
+    /**
+     * Latencies of each phase in nanoseconds
+     */
+    private final long[] resetTimes;
+    private final long[] generateTimes;
+    private final long[] signTimes;
+    private int generateCount = 0;
+    private int signCount = 0;
+
+    private int failGenCount = 0;
+    private long elapsed = 0;
+
+    /**
+     * Creates a benchmark of the given connected {@code proxy}.
+     *
+     * @param proxy  connected proxy
+     * @param mode   name of the mode
+     * @param rounds number of rounds
+     */
+    public Benchmark(AbstractProxy proxy, String mode, int rounds) {
+        this.proxy = proxy;
+        this.mode = mode;
+        this.rounds = rounds;
+
+        resetTimes = new long[rounds];
+        generateTimes = new long[rounds];
+        signTimes = new long[rounds];
+    }
+
+    /**
+     * Runs all rounds.
+     *
+     * @throws IOException   if some of the files cannot be read or written to
+     * @throws CardException if something on the smart card fails
+     */
+    public void run() throws IOException, CardException {
+        proxy.setQuiet(true);
+
+        try {
+            elapsed = -System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                System.out.printf("TEST %d: ", i + 1);
+                runRound(i);
+            }
+            elapsed += System.nanoTime();
+        } finally {
+            proxy.setQuiet(false);
+        }
+    }
+
+    /**
+     * Runs a single round.
+     *
+     * @param round index of the round
+     * @throws IOException   if some of the files cannot be read or written to
+     * @throws CardException if something on the smart card fails
+     */
+    private void runRound(int round) throws IOException, CardException {
+        long start = System.nanoTime();
+        proxy.reset();
+        resetTimes[round] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try {
+            proxy.generateKeys();
+        } catch (IOException | CardException e) {
+            failGenCount++;
+            System.out.printf("\u001B[1;31mNOK\u001B[0m (%s)%n", e.getMessage());
+            return;
+        }
+        generateTimes[generateCount++] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        proxy.signMessage();
+        signTimes[signCount++] = System.nanoTime() - start;
+
+        System.out.printf("\u001B[1;32mOK\u001B[0m%n");
+    }
+
+    /**
+     * Prints the JSON report or stores it to the {@code fileName} file.
+     *
+     * @param fileName file name or null if the report should be printed
+     * @throws IOException if the report file cannot be created or written to
+     */
+    public void report(String fileName) throws IOException {
+        String json = toJson();
+
+        System.out.printf("Result: %d/%d, %d%% failed%n", failGenCount, rounds, failGenCount * 100 / rounds);
+        if (fileName == null) {
+            System.out.println(json);
+            return;
+        }
+
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            writer.write(json);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Formats the results as a JSON object.
+     *
+     * @return JSON string
+     */
+    private String toJson() {
+        double seconds = elapsed / 1e9;
+
+        StringBuilder json = new StringBuilder();
+        json.append('{');
+        json.append(String.format(Locale.ROOT, "\"mode\":\"%s\",", mode));
+        json.append(String.format(Locale.ROOT, "\"rounds\":%d,", rounds));
+        json.append(String.format(Locale.ROOT, "\"failedGenerate\":%d,", failGenCount));
+        json.append(String.format(Locale.ROOT, "\"elapsedSeconds\":%.3f,", seconds));
+        json.append(String.format(Locale.ROOT, "\"roundsPerSecond\":%.3f,", seconds > 0 ? rounds / seconds : 0));
+        json.append("\"phases\":{");
+        appendPhase(json, "reset", resetTimes, rounds);
+        json.append(',');
+        appendPhase(json, "generate", generateTimes, generateCount);
+        json.append(',');
+        appendPhase(json, "sign", signTimes, signCount);
+        json.append("}}");
+
+        return json.toString();
+    }
+
+    /**
+     * Appends the statistics of a single phase to the given {@code json}.
+     *
+     * @param json  JSON string builder
+     * @param name  name of the phase
+     * @param times latencies in nanoseconds
+     * @param count number of valid latencies
+     */
+    private static void appendPhase(StringBuilder json, String name, long[] times, int count) {
+        long[] sorted = Arrays.copyOf(times, count);
+        Arrays.sort(sorted);
+
+        json.append(String.format(Locale.ROOT, "\"%s\":{\"count\":%d", name, count));
+        for (int p : PERCENTILES)
+            json.append(String.format(Locale.ROOT, ",\"p%dMs\":%.3f", p, percentile(sorted, p) / 1e6));
+
+        json.append(String.format(Locale.ROOT, ",\"maxMs\":%.3f}", count > 0 ? sorted[count - 1] / 1e6 : 0));
+    }
+
+    /**
+     * Computes the nearest-rank percentile of the given sorted latencies.
+     *
+     * @param sorted     sorted latencies
+     * @param percentile percentile
+     * @return value of the percentile or 0 if there are no latencies
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0)
+            return 0;
+
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+}
@@ -0,0 +1,75 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportProvider;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+
+import java.util.Random;
+
+/**
+ * The {@link CdsTraining} class represents the training run of the {@code cds} Maven profile.
+ * <p>
+ * All actions of all modes are run once against the simulated card in the working
+ * directory, so the classes loaded by any action are stored to the class data sharing
+ * archive dumped at the exit of the JVM.
+ *
+ * @author Lukas Zaoral
+ */
+public class CdsTraining {
+
+    /**
+     * Actions run in the training, the modes share the keys and signatures
+     * through the files as in the stress tests
+     */
+    private static final String[][] ACTIONS = {
+            {"client-full", "reset"},
+            {"client-full", "generate"},
+            {"client-full", "sign"},
+            {"client-full", "sign", "message.txt"},
+            {"server", "reset"},
+            {"server", "generate"},
+            {"server", "sign"},
+            {"client-sign", "reset"},
+            {"client-sign", "generate"},
+            {"client-sign", "sign"},
+            {"client-full", "script", "reset", "generate", "sign"},
+            {"convert", "final.sig", "final.bin"},
+    };
+
+    /**
+     * Runs the training in the working directory.
+     *
+     * @param args unused
+     * @throws IOException if the input files cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (System.getProperty(TransportProvider.TRANSPORT_PROPERTY) == null)
+            System.setProperty(TransportProvider.TRANSPORT_PROPERTY, "sim");
+
+        DataFile.writeHex("message.txt", "0123456789ABCDEF");
+        writeClientKeys();
+
+        for (String[] action : ACTIONS)
+            Main.main(action);
+    }
+
+    /**
+     * Writes the client keys of the client-sign mode, normally generated
+     * by the reference implementation. Any number smaller than the modulus
+     * works as the private exponent with the simulated applet.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeClientKeys() throws IOException {
+        Random random = new Random(0);
+        BigInteger n = new BigInteger(2048, random).setBit(2047).setBit(0);
+        BigInteger d = new BigInteger(2047, random);
+
+        DataFile.writeHex("client_card.key", Util.toHex(d.toByteArray()), Util.toHexTrimmed(n.toByteArray()));
+    }
+
+}
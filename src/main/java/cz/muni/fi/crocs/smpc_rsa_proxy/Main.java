@@ -1,12 +1,34 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy;
 
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.MessageEncoder;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.ApduMetrics;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.TraceRecorder;
+import cz.muni.fi.crocs.smpc_rsa_proxy.pool.CardPool;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractClientProxy;
 import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
 import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ClientFullProxy;
 import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ClientSignProxy;
 import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ServerProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.RelayServer;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportProvider;
 
 import javax.smartcardio.CardException;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * The {@link Main} class represents a handler of given
  * user commands.
@@ -19,10 +41,58 @@ public class Main {
      * Enum representing the allowed actions.
      */
     enum Action {
-        GENERATE,
-        SIGN,
-        RESET,
-        UNKNOWN
+        GENERATE(0, 0),
+        SIGN(0, 1),
+        RESET(0, 0),
+        DAEMON(0, 1),
+        BENCH(0, 2),
+        BATCH(2, 4),
+        SCRIPT(1, Integer.MAX_VALUE),
+        UNKNOWN(0, 0);
+
+        /**
+         * Minimal and maximal number of arguments of the action
+         */
+        private final int minArgs;
+        private final int maxArgs;
+
+        Action(int minArgs, int maxArgs) {
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+        }
+    }
+
+    /**
+     * The {@link Step} class represents a single validated action
+     * with its arguments.
+     */
+    private static class Step {
+        final Action action;
+        final String name;
+        final String[] args;
+        int number = 0;
+        boolean pipelined = false;
+        boolean documents = false;
+
+        Step(String[] words) {
+            this.action = parseAction(words[0]);
+            this.name = words[0];
+            this.args = Arrays.copyOfRange(words, 1, words.length);
+        }
+
+        /**
+         * Returns the action with its arguments as given by the user.
+         *
+         * @return description of the step
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name);
+            for (String arg : args)
+                sb.append(' ').append(arg);
+
+            return sb.toString();
+        }
     }
 
     /**
@@ -30,13 +100,33 @@ public class Main {
      */
     private static void printUsage() {
         System.err.println("Unknown parameters.\n" +
-                "USAGE: [executable] [mode] [action]\n" +
+                "USAGE: [executable] [mode] [action] [arguments]\n" +
+                "       [executable] relay [port] [address] - Expose the cards to the remote proxies\n" +
+                "                    (default port " + RelayServer.DEFAULT_PORT + " on the loopback)\n" +
+                "       [executable] convert [input] [output] - Convert the key or signature file\n" +
+                "                    between the hex and binary formats\n" +
+                "       [executable] verify [document] [public key] [signature] - Verify the final signature\n" +
+                "                    of the document signed by 'sign [document]' ('-' for stdin)\n" +
                 "    Modes: client-sign, client-full, server\n" +
                 "    Actions:\n" +
                 "        generate - Set the [client-sign] keys or\n" +
                 "                   Generate the [client-full|server] keys\n" +
-                "        sign - Sign the message\n" +
-                "        reset - Reset the applet"
+                "        sign [document] - Sign the message or hash and pad the [client-sign|client-full]\n" +
+                "                          document ('-' for stdin)\n" +
+                "        reset - Reset the applet\n" +
+                "        daemon [port] - Keep all cards connected and serve the actions\n" +
+                "                        on the local TCP port (default " + ProxyDaemon.DEFAULT_PORT + ")\n" +
+                "        bench [rounds] [output] - Run the reset/generate/sign rounds (default " +
+                Benchmark.DEFAULT_ROUNDS + ")\n" +
+                "                                  and print the JSON report or store it to output file\n" +
+                "        batch [input] [output] [--pipelined] [--documents] - Sign all messages from input file\n" +
+                "                                 ('-' for stdin) and write the signatures to output file,\n" +
+                "                                 optionally overlap the file processing with the card\n" +
+                "                                 or hash and pad the [client-sign|client-full] documents\n" +
+                "                                 listed in the input file in parallel\n" +
+                "        script [step...] - Run the steps over a single card connection, each step is\n" +
+                "                           an action with its arguments, e.g. 'sign message.txt',\n" +
+                "                           or '@file' ('@-' for stdin) with a step per line"
         );
     }
 
@@ -58,9 +148,39 @@ public class Main {
             return Action.RESET;
         }
 
+        if (action.equals("daemon")) {
+            return Action.DAEMON;
+        }
+
+        if (action.equals("bench")) {
+            return Action.BENCH;
+        }
+
+        if (action.equals("batch")) {
+            return Action.BATCH;
+        }
+
+        if (action.equals("script")) {
+            return Action.SCRIPT;
+        }
+
         return Action.UNKNOWN;
     }
 
+    /**
+     * Parses the given numeric argument.
+     *
+     * @param arg argument
+     * @return parsed number or -1 if the argument is not a number
+     */
+    private static int parseNumber(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Prints out the header with selected {@code mode}.
      *
@@ -98,46 +218,377 @@ public class Main {
         return null;
     }
 
+    /**
+     * Connects to all cards with the client-sign, client-full or server applet
+     * depending on the {@code mode} parameter.
+     *
+     * @param mode selected mode
+     * @return pool of the selected mode proxies or null if the mode does not exist
+     * @throws CardException if no terminal with the card with the selected applet is present
+     */
+    private static CardPool<AbstractProxy> getPool(String mode) throws CardException {
+        if (mode.equals("client-sign")) {
+            printHeader("CLIENT-SIGN");
+            return CardPool.connect(ClientSignProxy.APPLET_AID, ClientSignProxy::new);
+        }
+
+        if (mode.equals("client-full")) {
+            printHeader("CLIENT-FULL");
+            return CardPool.connect(ClientFullProxy.APPLET_AID, ClientFullProxy::new);
+        }
+
+        if (mode.equals("server")) {
+            printHeader("SERVER");
+            return CardPool.connect(ServerProxy.APPLET_AID, ServerProxy::new);
+        }
+
+        return null;
+    }
+
+    /**
+     * Runs the relay of the cards of the configured transport
+     * with the given {@code args} arguments.
+     *
+     * @param args array of command-line arguments
+     */
+    private static void relay(String[] args) {
+        int port = args.length > 1 ? parseNumber(args[1]) : RelayServer.DEFAULT_PORT;
+        if (args.length > 3 || port <= 0) {
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            InetAddress address = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+            new RelayServer(TransportProvider.getDefault(), address, port).run();
+        } catch (Exception e) {
+            System.err.println(" \u001B[1;31mNOK\u001B[0m");
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts the key or signature file given by the {@code args} arguments
+     * between the hex and binary formats.
+     *
+     * @param args array of command-line arguments
+     */
+    private static void convert(String[] args) {
+        if (args.length != 3) {
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            System.out.print("Converting file...");
+            boolean binary = DataFile.convert(args[1], args[2], 2);
+            System.out.printf(" \u001B[1;32mOK\u001B[0m (%s)%n", binary ? "binary" : "hex");
+        } catch (Exception e) {
+            System.err.println(" \u001B[1;31mNOK\u001B[0m");
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifies the final signature of the document given by the {@code args} arguments
+     * with the public key. The encoding is selected by the same properties as when signing.
+     *
+     * @param args array of command-line arguments
+     */
+    private static void verify(String[] args) {
+        if (args.length != 4) {
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            System.out.print("Verifying signature...");
+            MessageEncoder encoder = AbstractClientProxy.createMessageEncoder();
+            DataFile publicKey = DataFile.read(args[2], 2);
+            DataFile signature = DataFile.read(args[3], 2);
+
+            if (!encoder.verify(encoder.digest(args[1]), signature.get(1),
+                    new BigInteger(1, publicKey.get(0)), new BigInteger(1, publicKey.get(1)))) {
+                System.err.println(" \u001B[1;31mNOK\u001B[0m");
+                System.err.println("The signature is not valid.");
+                System.exit(1);
+            }
+
+            System.out.println(" \u001B[1;32mOK\u001B[0m");
+        } catch (Exception e) {
+            System.err.println(" \u001B[1;31mNOK\u001B[0m");
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses and validates the action of the given {@code mode} with its arguments
+     * before connecting to the card.
+     *
+     * @param mode  selected mode
+     * @param words action followed by its arguments
+     * @return parsed step or null if the action or its arguments are wrong
+     */
+    private static Step parseStep(String mode, String[] words) {
+        Step step = new Step(words);
+        Action action = step.action;
+        if (action == Action.UNKNOWN || step.args.length < action.minArgs || step.args.length > action.maxArgs)
+            return null;
+
+        for (int i = 2; action == Action.BATCH && i < step.args.length; i++) {
+            if (step.args[i].equals("--pipelined") && !step.pipelined) {
+                step.pipelined = true;
+            } else if (step.args[i].equals("--documents") && !step.documents && !mode.equals("server")) {
+                step.documents = true;
+            } else {
+                return null;
+            }
+        }
+
+        if (action == Action.SIGN && step.args.length > 0 && mode.equals("server"))
+            return null;
+
+        if ((action == Action.DAEMON || action == Action.BENCH) && step.args.length > 0) {
+            step.number = parseNumber(step.args[0]);
+            if (step.number <= 0)
+                return null;
+        }
+
+        return step;
+    }
+
+    /**
+     * Parses and validates the steps of the script of the given {@code mode}.
+     * Each entry is either a single step or {@code @file} with a step per line
+     * ({@code @-} for stdin), the empty lines and lines starting with {@code #} are skipped.
+     *
+     * @param mode    selected mode
+     * @param entries script entries
+     * @return list of the parsed steps or null if any step is wrong
+     * @throws IOException if a script file cannot be read
+     */
+    private static List<Step> parseScript(String mode, String[] entries) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String entry : entries) {
+            if (!entry.startsWith("@")) {
+                lines.add(entry);
+                continue;
+            }
+
+            String fileName = entry.substring(1);
+            InputStream in = fileName.equals("-") ? System.in : new FileInputStream(fileName);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+                        lines.add(line);
+                }
+            }
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for (String line : lines) {
+            String[] words = line.trim().split("\\s+");
+            Step step = words[0].isEmpty() ? null : parseStep(mode, words);
+            if (step == null || step.action == Action.DAEMON || step.action == Action.SCRIPT) {
+                System.err.printf("Wrong script step '%s'.%n", line.trim());
+                return null;
+            }
+
+            steps.add(step);
+        }
+
+        return steps.isEmpty() ? null : steps;
+    }
+
+    /**
+     * Runs the given {@code step} over the connected proxy.
+     *
+     * @param smpcRSA connected proxy
+     * @param mode    selected mode
+     * @param step    validated step
+     * @throws Exception if the action fails
+     */
+    private static void runStep(AbstractProxy smpcRSA, String mode, Step step) throws Exception {
+        switch (step.action) {
+            case GENERATE:
+                smpcRSA.generateKeys();
+                break;
+
+            case SIGN:
+                if (step.args.length > 0)
+                    ((AbstractClientProxy) smpcRSA).signDocument(step.args[0]);
+                else
+                    smpcRSA.signMessage();
+                break;
+
+            case RESET:
+                smpcRSA.reset();
+                break;
+
+            case BENCH:
+                Benchmark bench = new Benchmark(smpcRSA, mode,
+                        step.number > 0 ? step.number : Benchmark.DEFAULT_ROUNDS);
+                bench.run();
+                bench.report(step.args.length > 1 ? step.args[1] : null);
+                break;
+
+            case BATCH:
+                System.out.print("Signing messages...");
+                System.out.flush();
+                MessageEncoder encoder = step.documents
+                        ? AbstractClientProxy.createMessageEncoder() : null;
+                int count = new BatchSigner(smpcRSA, encoder).run(step.args[0], step.args[1], step.pipelined);
+                System.out.printf(" \u001B[1;32mOK\u001B[0m (%d)%n", count);
+                break;
+        }
+    }
+
+    /**
+     * Runs the {@code steps} of the script in the given order over a single
+     * card connection and prints out the duration of each step.
+     *
+     * @param mode  selected mode
+     * @param steps validated steps
+     * @throws Exception if the connection or any step fails, the remaining steps are not run,
+     *                   the card is disconnected and the summary of the run steps is printed
+     */
+    @SuppressWarnings("try")
+    private static void runScript(String mode, List<Step> steps) throws Exception {
+        TraceRecorder trace = TraceRecorder.getInstance();
+        long[] durations = new long[steps.size()];
+
+        try (TraceRecorder.Span span = trace.start("script", "action", mode)) {
+            long start = System.nanoTime();
+            AbstractProxy smpcRSA = getMode(mode);
+            if (smpcRSA == null) {
+                printUsage();
+                System.exit(1);
+            }
+            long connect = System.nanoTime() - start;
+
+            int done = 0;
+            try {
+                for (; done < steps.size(); done++) {
+                    Step step = steps.get(done);
+                    System.out.printf("\u001B[1;33m[%d/%d] %s\u001B[0m%n", done + 1, steps.size(), step);
+
+                    long stepStart = System.nanoTime();
+                    try (TraceRecorder.Span stepSpan = trace.start(step.name, "action", step.toString())) {
+                        runStep(smpcRSA, mode, step);
+                    } finally {
+                        durations[done] = System.nanoTime() - stepStart;
+                    }
+                }
+            } finally {
+                // a failure of the disconnection does not hide the failure of a step
+                try {
+                    smpcRSA.disconnect();
+                } catch (CardException e) {
+                    System.err.println("Disconnection failed: " + e.getMessage());
+                }
+
+                System.out.println("Script summary:");
+                System.out.printf("  %-32s %10.1f ms%n", "connect", connect / 1e6);
+                for (int i = 0; i < done; i++)
+                    System.out.printf("  %-32s %10.1f ms%n", (i + 1) + ". " + steps.get(i), durations[i] / 1e6);
+                if (done < steps.size())
+                    System.out.printf("  %-32s %10.1f ms \u001B[1;31mFAILED\u001B[0m%n",
+                            (done + 1) + ". " + steps.get(done), durations[done] / 1e6);
+                System.out.printf("  %-32s %10.1f ms%n", "total", (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
     /**
      * Main method of the SMPC RSA proxy application.
      *
      * @param args array of command-line arguments
      */
+    @SuppressWarnings("try")
     public static void main(String[] args) {
-        if (args.length != 2) {
+        if (args.length > 0 && args[0].equals("relay")) {
+            relay(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("convert")) {
+            convert(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("verify")) {
+            verify(args);
+            return;
+        }
+
+        if (args.length < 2) {
             printUsage();
             System.exit(1);
         }
 
         // check before connecting to the card
-        Action action = parseAction(args[1]);
-        if (action == Action.UNKNOWN) {
+        Step step = parseStep(args[0], Arrays.copyOfRange(args, 1, args.length));
+        if (step == null) {
             printUsage();
             System.exit(1);
         }
 
-        try {
-            AbstractProxy smpcRSA = getMode(args[0]);
-            if (smpcRSA == null) {
+        List<Step> steps = Collections.singletonList(step);
+        if (step.action == Action.SCRIPT) {
+            try {
+                steps = parseScript(args[0], step.args);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+
+            if (steps == null) {
                 printUsage();
                 System.exit(1);
             }
+        }
 
-            switch (action) {
-                case GENERATE:
-                    smpcRSA.generateKeys();
-                    break;
+        // the long-running actions expose the APDU metrics through JMX,
+        // the MBean server starts while connecting to the card
+        for (Step s : steps) {
+            if (s.action == Action.DAEMON || s.action == Action.BENCH || s.action == Action.BATCH) {
+                ApduMetrics.registerMBeanInBackground();
+                break;
+            }
+        }
 
-                case SIGN:
-                    smpcRSA.signMessage();
-                    break;
+        try {
+            if (step.action == Action.DAEMON) {
+                CardPool<AbstractProxy> pool = getPool(args[0]);
+                if (pool == null) {
+                    printUsage();
+                    System.exit(1);
+                }
+
+                new ProxyDaemon(pool, step.number > 0 ? step.number : ProxyDaemon.DEFAULT_PORT).run();
+                return;
+            }
 
-                case RESET:
-                    smpcRSA.reset();
-                    break;
+            if (step.action == Action.SCRIPT) {
+                runScript(args[0], steps);
+                return;
             }
 
-            smpcRSA.disconnect();
+            // the spans of the proxy phases are nested in the span of the whole action
+            try (TraceRecorder.Span span = TraceRecorder.getInstance().start(args[1], "action", args[0])) {
+                AbstractProxy smpcRSA = getMode(args[0]);
+                if (smpcRSA == null) {
+                    printUsage();
+                    System.exit(1);
+                }
+
+                runStep(smpcRSA, args[0], step);
+                smpcRSA.disconnect();
+            }
 
         } catch (Exception e) {
             System.err.println(" \u001B[1;31mNOK\u001B[0m");
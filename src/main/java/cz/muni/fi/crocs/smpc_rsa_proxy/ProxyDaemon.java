@@ -0,0 +1,426 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.ApduMetrics;
+import cz.muni.fi.crocs.smpc_rsa_proxy.pool.CardMonitor;
+import cz.muni.fi.crocs.smpc_rsa_proxy.pool.CardPool;
+import cz.muni.fi.crocs.smpc_rsa_proxy.pool.HedgedRouter;
+import cz.muni.fi.crocs.smpc_rsa_proxy.pool.KeyInventory;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractClientProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ClientFullProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ClientSignProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ServerProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportProvider;
+
+import javax.smartcardio.CardException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The {@link ProxyDaemon} class keeps a pool of connected cards
+ * and serves requests of local clients over a TCP socket.
+ * <p>
+ * The protocol is line based. Each request is a single line with an action
+ * and its optional hex arguments:
+ * <pre>
+ *     generate
+ *     reset
+ *     sign
+ *     sign [message]                    (client-sign, client-full)
+ *     sign [message] [client signature] (server)
+ *     key                               (client-full with inventory)
+ *     sign [message] [key ID]           (client-full with inventory)
+ *     release [key ID]                  (client-full with inventory)
+ *     metrics [file]                    (default metrics.prom)
+ *     ping
+ *     shutdown
+ * </pre>
+ * Each response is a single line starting with {@code OK}, optionally followed
+ * by the hex encoded result, or with {@code NOK} followed by the error message.
+ * <p>
+ * The {@code sign} requests with inline arguments are spread over the signer cards
+ * by the {@link HedgedRouter} and may run concurrently. The {@code reset} request, and the
+ * {@code generate} request of the client-sign mode, are executed on every card.
+ * The {@code generate} request of the other modes requires a single card.
+ * The requests working with the files are executed one at a time.
+ * <p>
+ * The {@code sign} requests are executed only by the signer cards, i.e. the cards known
+ * to hold the keys of the single logical signer, so a signature is never made with
+ * another key. These are the cards on which the last {@code generate} request succeeded,
+ * or the only card of the pool at start. Only the client-sign cards, which are all loaded
+ * from the same key file, may share the keys, the cards of the other modes generate
+ * their own keys, so a single card signs. A reset card is no longer a signer.
+ * <p>
+ * If the {@code KeyInventory.INVENTORY_PROPERTY} property is set in the client-full mode,
+ * the idle cards generate keys in advance. The {@code key} request takes a key from
+ * the stock and responds with its ID, server private exponent share and partial modulus.
+ * The key is then used by the {@code sign} requests with its ID until released.
+ * As every card of the pool is managed by the inventory, the {@code generate}, {@code reset}
+ * and {@code sign} requests without a key ID are rejected then.
+ * <p>
+ * Unless the {@code CardMonitor.HOT_PLUG_PROPERTY} property is {@code off}, the inserted
+ * cards are added to the pool and the removed ones are taken out of it while running.
+ *
+ * @author Lukas Zaoral
+ */
+public class ProxyDaemon {
+
+    /**
+     * Default port of the daemon
+     */
+    public static final int DEFAULT_PORT = 7312;
+
+    /**
+     * Default file with the metrics in the Prometheus text format
+     */
+    private static final String DEFAULT_METRICS_FILE = "metrics.prom";
+
+    /**
+     * Response to the {@code sign} request without any signer card
+     */
+    private static final String NO_SIGNER = "NOK No connected card is known to hold the keys, " +
+            "set or generate them by the 'generate' request.";
+
+    /**
+     * Response to the requests changing or using the keys outside of the key inventory
+     */
+    private static final String INVENTORY_MANAGED = "NOK The cards are managed by the key inventory, " +
+            "use the 'key' request and sign with the key ID.";
+
+    private final CardPool<AbstractProxy> pool;
+    private final HedgedRouter<AbstractProxy> router;
+    private final ServerSocket serverSocket;
+    private final Object fileLock = new Object();
+    private final boolean server;
+    private final boolean sharedKeys;
+    private final KeyInventory inventory;
+    private final CardMonitor<AbstractProxy> monitor;
+
+    /**
+     * Cards holding the keys of the signer
+     */
+    private final Set<AbstractProxy> signers = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a daemon serving the given non-empty {@code pool} of connected cards
+     * on the loopback interface.
+     *
+     * @param pool pool of connected cards
+     * @param port port to listen on
+     * @throws IOException   if the socket cannot be opened
+     * @throws CardException if the transport of the hot-plug monitor is invalid
+     */
+    public ProxyDaemon(CardPool<AbstractProxy> pool, int port) throws IOException, CardException {
+        this.pool = pool;
+        this.router = new HedgedRouter<>(pool, signers::contains);
+        pool.addRemoveListener(signers::remove);
+
+        AbstractProxy proxy = pool.getProxies().get(0);
+        this.server = proxy instanceof ServerProxy;
+        this.sharedKeys = proxy instanceof ClientSignProxy;
+        this.inventory = proxy instanceof ClientFullProxy ? KeyInventory.fromProperties(clientFullPool(pool)) : null;
+        this.monitor = System.getProperty(CardMonitor.HOT_PLUG_PROPERTY, "on").equals("off") ? null
+                : new CardMonitor<>(pool, TransportProvider.getDefault());
+
+        // the keys of a single card cannot be mixed with others,
+        // the keys of several cards are not known until set by the daemon
+        if (pool.size() == 1)
+            signers.add(proxy);
+
+        // the progress of concurrent operations would be interleaved,
+        // also with the progress of the cards inserted later
+        if (pool.size() > 1 || monitor != null) {
+            for (AbstractProxy p : pool.getProxies())
+                p.setQuiet(true);
+        }
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Accepts and serves the clients until the {@code shutdown} request is received.
+     *
+     * @throws IOException if the socket fails
+     */
+    public void run() throws IOException {
+        if (inventory != null) {
+            try {
+                inventory.start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (monitor != null)
+            monitor.start();
+
+        System.out.printf("Listening on %s:%d with %d card(s)%n", serverSocket.getInetAddress().getHostAddress(),
+                serverSocket.getLocalPort(), pool.size());
+
+        while (running) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (!running)
+                    break;
+
+                throw e;
+            }
+
+            Thread worker = new Thread(() -> serve(client), "proxy-daemon-client");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Serves all requests of the given {@code client}.
+     *
+     * @param client client socket
+     */
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.write(handle(line.trim()));
+                writer.newLine();
+                writer.flush();
+
+                if (!running)
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println("Client connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executes a single request.
+     *
+     * @param request request line
+     * @return response line
+     */
+    String handle(String request) {
+        String[] args = request.split("\\s+");
+
+        try {
+            switch (args[0]) {
+                case "generate":
+                    if (inventory != null)
+                        return INVENTORY_MANAGED;
+
+                    return generate();
+
+                case "reset":
+                    if (inventory != null)
+                        return INVENTORY_MANAGED;
+
+                    return await(pool.broadcast(p -> {
+                        signers.remove(p);
+                        p.reset();
+                        return null;
+                    }));
+
+                case "sign":
+                    return sign(args);
+
+                case "key":
+                    return key();
+
+                case "release":
+                    if (inventory == null || args.length != 2)
+                        return "NOK Unknown request.";
+
+                    inventory.release(args[1]);
+                    return "OK";
+
+                case "metrics":
+                    ApduMetrics.getInstance().writePrometheus(args.length > 1 ? args[1] : DEFAULT_METRICS_FILE);
+                    return "OK";
+
+                case "ping":
+                    return "OK";
+
+                case "shutdown":
+                    shutdown();
+                    return "OK";
+
+                default:
+                    return "NOK Unknown request.";
+            }
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.err.println(" \u001B[1;31mNOK\u001B[0m");
+            System.err.println(cause.getMessage());
+            return "NOK " + String.valueOf(cause.getMessage()).replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Executes the {@code generate} request.
+     *
+     * @return response line
+     * @throws ExecutionException   if the operation fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private String generate() throws ExecutionException, InterruptedException {
+        if (pool.size() != 1 && !sharedKeys)
+            return "NOK Keys can be generated only with a single card connected.";
+
+        synchronized (fileLock) {
+            // a card failing to set or generate the keys keeps the previous ones
+            signers.clear();
+            return await(pool.broadcast(p -> {
+                p.generateKeys();
+                signers.add(p);
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * Waits for all given {@code results}.
+     *
+     * @param results future results
+     * @return response line
+     * @throws ExecutionException   if some of the operations fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static String await(List<? extends Future<Object>> results) throws ExecutionException, InterruptedException {
+        for (Future<Object> r : results)
+            r.get();
+
+        return "OK";
+    }
+
+    /**
+     * Executes the {@code sign} request.
+     *
+     * @param args request arguments
+     * @return response line
+     * @throws CardException        if the pool is empty
+     * @throws ExecutionException   if the operation fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private String sign(String[] args) throws CardException, ExecutionException, InterruptedException {
+        if (inventory != null && args.length != 3)
+            return INVENTORY_MANAGED;
+
+        if (args.length == 1) {
+            if (!hasSigner())
+                return NO_SIGNER;
+
+            synchronized (fileLock) {
+                return await(Collections.singletonList(pool.submit(signers::contains, p -> {
+                    p.signMessage();
+                    return null;
+                })));
+            }
+        }
+
+        byte[] message = Util.hexStringToByteArray(args[1]);
+
+        if (inventory != null && args.length == 3) {
+            byte[] signature = inventory.sign(args[2], message).get();
+            return "OK " + Util.toHexTrimmed(signature);
+        }
+
+        if (!hasSigner())
+            return NO_SIGNER;
+
+        if (!server && args.length == 2) {
+            byte[] signature = router.submit(p -> ((AbstractClientProxy) p).signMessage(message)).get();
+            return "OK " + Util.toHexTrimmed(signature);
+        }
+
+        if (server && args.length == 3) {
+            byte[] clientSignature = Util.hexStringToByteArray(args[2]);
+            byte[] signature = router.submit(p -> ((ServerProxy) p).signMessage(message, clientSignature)).get();
+            return "OK " + Util.toHex(signature);
+        }
+
+        return "NOK Wrong number of arguments.";
+    }
+
+    /**
+     * Checks whether any signer card is connected.
+     *
+     * @return true if some card of the pool holds the keys of the signer
+     */
+    private boolean hasSigner() {
+        for (AbstractProxy p : pool.getProxies()) {
+            if (signers.contains(p))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Executes the {@code key} request.
+     *
+     * @return response line
+     * @throws ExecutionException   if the key cannot be taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private String key() throws ExecutionException, InterruptedException {
+        if (inventory == null)
+            return "NOK Unknown request.";
+
+        KeyInventory.Key key = inventory.take().get();
+        return String.format("OK %s %s %s", key.getId(), Util.toHexTrimmed(key.getD1Server()),
+                Util.toHexTrimmed(key.getN1()));
+    }
+
+    /**
+     * Returns the given {@code pool} of the client-full cards with the specific type.
+     *
+     * @param pool pool of the client-full cards
+     * @return the same pool
+     */
+    @SuppressWarnings("unchecked")
+    private static CardPool<ClientFullProxy> clientFullPool(CardPool<AbstractProxy> pool) {
+        return (CardPool<ClientFullProxy>) (CardPool<?>) pool;
+    }
+
+    /**
+     * Stops accepting new clients and disconnects from the cards.
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    private void shutdown() throws IOException {
+        running = false;
+        serverSocket.close();
+        if (monitor != null)
+            monitor.close();
+
+        if (inventory != null)
+            inventory.close();
+
+        router.close();
+        pool.close();
+    }
+
+}
@@ -0,0 +1,296 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@link ApduLogger} class logs the APDU exchanges of all card managers
+ * of the process without slowing them down.
+ * <p>
+ * The exchanging threads only put the already built APDU objects and timings
+ * into a bounded lock-free ring buffer. The hex conversion, formatting and writing
+ * is done by the background thread. When the buffer is full, the exchanges are
+ * dropped and counted instead of waiting. With the {@code SAMPLE_PROPERTY} property,
+ * only a random sample of the exchanges is logged. The failed exchanges are always logged.
+ * <p>
+ * The log is written to the file given by the {@code LOG_PROPERTY} property
+ * or to the standard output. The remaining entries are written when the process exits.
+ *
+ * @author Lukas Zaoral
+ */
+public class ApduLogger {
+
+    /**
+     * System property with the log file name enabling the logging of all card managers,
+     * {@code -} for the standard output
+     */
+    public static final String LOG_PROPERTY = "smpc.apduLog";
+
+    /**
+     * System property with the sampling rate, every {@code n}-th exchange
+     * is logged on average (1 by default)
+     */
+    public static final String SAMPLE_PROPERTY = "smpc.apduLogSample";
+
+    /**
+     * Capacity of the ring buffer, a power of two
+     */
+    private static final int CAPACITY = 1 << 14;
+
+    /**
+     * Time for which the writer waits when the buffer is empty in nanoseconds
+     */
+    private static final long IDLE_NANOS = 1000000;
+
+    /**
+     * Maximal time for writing the remaining entries when the process exits in milliseconds
+     */
+    private static final long EXIT_MILLIS = 1000;
+
+    private static ApduLogger instance = null;
+
+    /**
+     * The {@link Entry} class represents a single logged exchange.
+     */
+    private static class Entry {
+        final String terminal;
+        final long time;
+        final long elapsed;
+        final CommandAPDU cmd;
+        final ResponseAPDU response;
+        final String error;
+
+        Entry(String terminal, long time, long elapsed, CommandAPDU cmd, ResponseAPDU response, String error) {
+            this.terminal = terminal;
+            this.time = time;
+            this.elapsed = elapsed;
+            this.cmd = cmd;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Ring buffer, a slot is null until its entry is published
+     */
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    /**
+     * Index of the next entry to be written and of the next free slot
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final int sample;
+    private final Writer out;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    private final Thread thread;
+    private long reportedDrops = 0;
+
+    private ApduLogger(OutputStream out, int sample) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out));
+        this.sample = sample;
+
+        this.thread = new Thread(this::run, "apdu-logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainAll, "apdu-logger-flush"));
+    }
+
+    /**
+     * Returns the logger of the process configured by the {@code LOG_PROPERTY}
+     * and {@code SAMPLE_PROPERTY} properties.
+     *
+     * @return shared logger
+     */
+    public static synchronized ApduLogger getInstance() {
+        if (instance != null)
+            return instance;
+
+        String fileName = System.getProperty(LOG_PROPERTY, "-");
+        int sample = 1;
+        try {
+            sample = Math.max(1, Integer.parseInt(System.getProperty(SAMPLE_PROPERTY, "1")));
+        } catch (NumberFormatException e) {
+            System.err.printf("Wrong '%s' value, logging all APDUs.%n", SAMPLE_PROPERTY);
+        }
+
+        OutputStream stream = System.out;
+        if (!fileName.equals("-")) {
+            try {
+                stream = new FileOutputStream(fileName);
+            } catch (IOException e) {
+                System.err.printf("The APDU log '%s' cannot be created, logging to the standard output.%n",
+                        fileName);
+            }
+        }
+
+        instance = new ApduLogger(stream, sample);
+        return instance;
+    }
+
+    /**
+     * Returns the logger of the process if enabled by the {@code LOG_PROPERTY} property.
+     *
+     * @return shared logger or null if the logging is not enabled
+     */
+    public static ApduLogger fromProperties() {
+        return System.getProperty(LOG_PROPERTY) == null ? null : getInstance();
+    }
+
+    /**
+     * Returns the number of exchanges dropped because the buffer was full.
+     *
+     * @return number of dropped exchanges
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Queues the finished exchange to be logged. Never blocks.
+     *
+     * @param terminal name of the terminal
+     * @param cmd      sent Command APDU
+     * @param response received Response APDU
+     * @param elapsed  duration of the exchange in nanoseconds
+     */
+    public void log(String terminal, CommandAPDU cmd, ResponseAPDU response, long elapsed) {
+        if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0)
+            return;
+
+        offer(new Entry(terminal, System.currentTimeMillis(), elapsed, cmd, response, null));
+    }
+
+    /**
+     * Queues the exchange failed without a response to be logged. Never blocks.
+     *
+     * @param terminal name of the terminal
+     * @param cmd      sent Command APDU
+     * @param error    cause of the failure
+     * @param elapsed  duration of the exchange in nanoseconds
+     */
+    public void logFailure(String terminal, CommandAPDU cmd, Throwable error, long elapsed) {
+        offer(new Entry(terminal, System.currentTimeMillis(), elapsed, cmd, null, String.valueOf(error.getMessage())));
+    }
+
+    /**
+     * Puts the given {@code entry} into the ring buffer or drops it if the buffer is full.
+     *
+     * @param entry logged exchange
+     */
+    private void offer(Entry entry) {
+        while (true) {
+            long t = tail.get();
+            if (t - head.get() >= CAPACITY) {
+                droppedCount.increment();
+                return;
+            }
+
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) t & (CAPACITY - 1), entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the queued entries until the process exits.
+     */
+    private void run() {
+        while (true) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Writes all entries queued before the process exit. Waits at most
+     * {@code EXIT_MILLIS} for the entries being published by the stopped threads.
+     */
+    private void drainAll() {
+        long deadline = System.currentTimeMillis() + EXIT_MILLIS;
+        while (head.get() < tail.get() && System.currentTimeMillis() < deadline) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Writes the published entries and flushes the output.
+     *
+     * @return number of written entries
+     */
+    private synchronized int drain() {
+        int count = 0;
+
+        try {
+            long h = head.get();
+            Entry entry;
+            while ((entry = slots.get((int) h & (CAPACITY - 1))) != null) {
+                slots.lazySet((int) h & (CAPACITY - 1), null);
+                head.lazySet(++h);
+                write(entry);
+                count++;
+            }
+
+            long dropped = droppedCount.sum();
+            if (dropped > reportedDrops) {
+                out.write(String.format("[%d APDU(s) dropped]%n", dropped - reportedDrops));
+                reportedDrops = dropped;
+                count++;
+            }
+
+            if (count > 0)
+                out.flush();
+        } catch (IOException e) {
+            // keep consuming the entries, so the exchanging threads are not affected
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the given {@code entry} in the format of the card manager debug output.
+     *
+     * @param entry logged exchange
+     * @throws IOException if the log cannot be written to
+     */
+    private void write(Entry entry) throws IOException {
+        String prefix = String.format("%s [%s] ", timeFormat.format(new Date(entry.time)), entry.terminal);
+        byte[] cmd = entry.cmd.getBytes();
+        out.write(String.format("%s--> %s (%d)%n", prefix, Util.toHex(cmd), cmd.length));
+
+        long time = entry.elapsed / 1000000;
+        if (entry.response == null) {
+            out.write(String.format("%s<-- FAILED: %s [%d ms]%n", prefix, entry.error, time));
+            return;
+        }
+
+        String swStr = String.format("%02X", entry.response.getSW());
+        byte[] data = entry.response.getData();
+        if (data.length > 0)
+            out.write(String.format("%s<-- %s %s (%d) [%d ms]%n", prefix, Util.toHex(data), swStr, data.length, time));
+        else
+            out.write(String.format("%s<-- %s [%d ms]%n", prefix, swStr, time));
+    }
+
+}
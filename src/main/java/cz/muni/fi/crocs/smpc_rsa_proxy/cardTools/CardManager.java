@@ -1,23 +1,81 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
 
-import javax.smartcardio.Card;
-import javax.smartcardio.CardChannel;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.ApduMetrics;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.TraceRecorder;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.ApduTrace;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.CardSlot;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.CardTransport;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportException;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportProvider;
+
 import javax.smartcardio.CardException;
-import javax.smartcardio.CardTerminal;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
-import javax.smartcardio.TerminalFactory;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@link CardManager} class represents a connection
- * to a smart card.
+ * to a smart card through the {@link CardTransport} selected
+ * by the {@code TransportProvider.TRANSPORT_PROPERTY} property.
  *
  * @author Petr Svenda, adapated by Lukas Zaoral
  */
 public class CardManager {
+
+    /**
+     * System property selecting the extended length APDU mode,
+     * {@code auto} (default), {@code on} or {@code off}
+     */
+    public static final String EXTENDED_LENGTH_PROPERTY = "smpc.extendedLength";
+
+    /**
+     * System property enabling the host-side model of the applet state,
+     * {@code on} (default) or {@code off}
+     */
+    public static final String STATE_TRACKING_PROPERTY = "smpc.stateTracking";
+
+    /**
+     * System property with the name of the {@link ApduTrace} file recording all exchanges,
+     * the next connections are recorded to the files with the {@code .1}, {@code .2}, ... suffixes
+     */
+    public static final String RECORD_PROPERTY = "smpc.record";
+
+    /**
+     * System property printing the time from the JVM start to the first APDU exchange,
+     * {@code off} (default) or {@code on}
+     */
+    public static final String STARTUP_TIMING_PROPERTY = "smpc.startupTiming";
+
+    private static final boolean STARTUP_TIMING = System.getProperty(STARTUP_TIMING_PROPERTY, "off").equals("on");
+
+    /**
+     * True until the first exchange of the process
+     */
+    private static final AtomicBoolean firstExchange = new AtomicBoolean(true);
+
+    /**
+     * Number of the recorded connections of the process
+     */
+    private static final AtomicInteger recordings = new AtomicInteger();
+
     private boolean bDebug = false;
+    private ApduLogger apduLogger = ApduLogger.fromProperties();
     private byte[] appletId;
-    private CardChannel channel = null;
+    private CardSlot slot = null;
+    private CardTransport transport = null;
+    private ApduTrace.Writer recorder = null;
+    private volatile boolean extendedLength = false;
+    private final ApduMetrics metrics = ApduMetrics.getInstance();
+    private final TraceRecorder trace = TraceRecorder.getInstance();
+    private final CardState state = new CardState(!System.getProperty(STATE_TRACKING_PROPERTY, "on").equals("off"));
 
     public CardManager(byte[] appletAID) {
         this.appletId = appletAID;
@@ -31,15 +89,15 @@ public class CardManager {
      */
     public boolean connect() throws CardException {
         if (bDebug)
-            System.out.print("Looking for physical cards... ");
+            System.out.print("Looking for cards... ");
 
-        TerminalFactory factory = TerminalFactory.getDefault();
+        TransportProvider provider = TransportProvider.getDefault();
 
-        CardTerminal terminal = null;
+        CardSlot slot = null;
         try {
-            for (CardTerminal t : factory.terminals().list()) {
-                if (t.isCardPresent())
-                    terminal = t;
+            for (CardSlot s : provider.list()) {
+                if (s.isCardPresent())
+                    slot = s;
             }
 
             if (bDebug)
@@ -48,32 +106,237 @@ public class CardManager {
             return false;
         }
 
-        if (terminal == null)
+        if (slot == null)
             return false;
 
+        return connect(slot);
+    }
+
+    /**
+     * Connects to the card in the given {@code slot}
+     *
+     * @param slot card reader
+     * @return true if connected
+     * @throws CardException exceptions from underlying connections
+     */
+    public boolean connect(CardSlot slot) throws CardException {
         if (bDebug)
             System.out.print("Connecting...");
-        Card card = terminal.connect("*"); // connect to the card
-        if (bDebug) {
+        this.slot = slot;
+        transport = slot.connect(); // connect to the card
+        extendedLength = detectExtendedLength(transport.getHistoricalBytes());
+        startRecording();
+
+        state.deselect();
+
+        if (bDebug)
             System.out.println(" Done.");
-            System.out.print("Establishing channel...");
+
+        if (!select()) {
+            transport.close();
+            return false;
         }
 
-        channel = card.getBasicChannel();
+        return true;
+    }
 
-        if (bDebug) {
-            System.out.println(" Done.");
-            System.out.print("Smart card: Selecting applet...");
+    /**
+     * Drops the current connection and connects to the card in the same slot again,
+     * e.g. after the card has been reset or the connection lost.
+     *
+     * @return true if connected and the applet selected
+     * @throws CardException exceptions from underlying connections
+     */
+    public boolean reconnect() throws CardException {
+        if (slot == null)
+            throw new CardException("The card has not been connected yet.");
+
+        try {
+            transport.close();
+        } catch (CardException | RuntimeException e) {
+            // the connection is already broken
+        }
+
+        return connect(slot);
+    }
+
+    /**
+     * Starts recording the exchanges of the new connection
+     * if the {@code RECORD_PROPERTY} property is set.
+     */
+    private void startRecording() {
+        String fileName = System.getProperty(RECORD_PROPERTY);
+        if (fileName == null)
+            return;
+
+        stopRecording();
+
+        int number = recordings.getAndIncrement();
+        if (number > 0)
+            fileName += "." + number;
+
+        try {
+            recorder = new ApduTrace.Writer(fileName, transport.getHistoricalBytes());
+        } catch (IOException e) {
+            System.err.println("Recording the APDUs failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops recording the exchanges.
+     */
+    private void stopRecording() {
+        if (recorder == null)
+            return;
+
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            System.err.println("Recording the APDUs failed: " + e.getMessage());
         }
 
+        recorder = null;
+    }
+
+    /**
+     * Selects the applet unless it is known to be selected.
+     *
+     * @return true if the applet is selected
+     * @throws CardException exceptions from underlying connections
+     */
+    public boolean select() throws CardException {
+        if (state.isSelected(appletId))
+            return true;
+
+        if (bDebug)
+            System.out.print("Smart card: Selecting applet...");
+
         CommandAPDU cmd = new CommandAPDU(0x00, 0xa4, 0x04, 0x00, appletId);
-        if (transmit(cmd).getSW() != 0x9000)
+        if (transmit(cmd).getSW() != 0x9000) {
+            state.deselect();
             return false;
+        }
+
+        state.setSelected(appletId);
 
         if (bDebug)
             System.out.println(" Done.");
 
-        return channel != null;
+        return true;
+    }
+
+    /**
+     * Returns the host-side model of the applet state.
+     *
+     * @return card state
+     */
+    public CardState getState() {
+        return state;
+    }
+
+    /**
+     * Connects to all present cards with the {@code appletAID} applet installed
+     *
+     * @param appletAID applet ID
+     * @return list of connected card managers
+     * @throws CardException exceptions from underlying connections
+     */
+    public static List<CardManager> connectAll(byte[] appletAID) throws CardException {
+        List<CardManager> managers = new ArrayList<>();
+
+        for (CardSlot s : TransportProvider.getDefault().list()) {
+            if (!s.isCardPresent())
+                continue;
+
+            CardManager manager = new CardManager(appletAID);
+            try {
+                if (manager.connect(s))
+                    managers.add(manager);
+            } catch (CardException e) {
+                // the card has been removed or is not usable, skip it
+            }
+        }
+
+        return managers;
+    }
+
+    /**
+     * Returns the name of the connected terminal.
+     *
+     * @return name of the terminal or null if not connected
+     */
+    public String getTerminalName() {
+        return transport == null ? null : transport.getName();
+    }
+
+    /**
+     * Decides whether the extended length APDUs are used with the card
+     * with given {@code historical} bytes of the ATR based on the {@code EXTENDED_LENGTH_PROPERTY} property.
+     *
+     * @param historical historical bytes of the ATR
+     * @return true if the extended length APDUs should be used
+     */
+    private static boolean detectExtendedLength(byte[] historical) {
+        String mode = System.getProperty(EXTENDED_LENGTH_PROPERTY, "auto");
+        if (mode.equals("on"))
+            return true;
+
+        if (mode.equals("off"))
+            return false;
+
+        return supportsExtendedLength(historical);
+    }
+
+    /**
+     * Checks the card capabilities in the {@code historical} bytes of the ATR
+     * for the extended Lc and Le fields support (ISO/IEC 7816-4).
+     *
+     * @param historical historical bytes of the ATR
+     * @return true if the card announces the extended length APDUs support
+     */
+    static boolean supportsExtendedLength(byte[] historical) {
+        if (historical.length == 0)
+            return false;
+
+        // only the compact-TLV formats are supported,
+        // the category 0x00 ends with a three byte status indicator
+        int category = historical[0] & 0xFF;
+        if (category != 0x00 && category != 0x80)
+            return false;
+
+        int end = category == 0x00 ? historical.length - 3 : historical.length;
+        for (int i = 1; i < end; ) {
+            int tag = (historical[i] >> 4) & 0x0F;
+            int len = historical[i] & 0x0F;
+
+            // third software function table of card capabilities,
+            // a truncated object must not reach into the status indicator
+            if (tag == 0x07 && len >= 3 && i + len < end)
+                return (historical[i + 3] & 0x40) != 0;
+
+            i += len + 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the extended length APDUs are used.
+     *
+     * @return true if the extended length APDUs are used
+     */
+    public boolean isExtendedLength() {
+        return extendedLength;
+    }
+
+    /**
+     * Enables or disables the extended length APDUs,
+     * e.g. if the applet does not accept them.
+     *
+     * @param extendedLength true if the extended length APDUs should be used
+     */
+    public void setExtendedLength(boolean extendedLength) {
+        this.extendedLength = extendedLength;
     }
 
     /**
@@ -82,7 +345,8 @@ public class CardManager {
      * @throws CardException exceptions from underlying connections
      */
     public void disconnect() throws CardException {
-        channel.getCard().disconnect(false);
+        stopRecording();
+        transport.close();
     }
 
     /**
@@ -90,39 +354,74 @@ public class CardManager {
      *
      * @param cmd Command APDU to be sent
      * @return Response APDU
-     * @throws CardException exceptions from underlying connections
+     * @throws TransportException if the exchange with the card fails
      */
     public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
-        if (bDebug)
-            log(cmd);
+        long start = System.nanoTime();
+        ResponseAPDU response;
+        try (TraceRecorder.Span span = trace.start("APDU", "card")) {
+            response = transport.transmit(cmd);
+            if (span.isRecording())
+                span.setDetail(String.format("%02X%02X SW %04X", cmd.getCLA(), cmd.getINS(), response.getSW()));
+        } catch (CardException | RuntimeException e) {
+            metrics.recordTransportError();
+            if (apduLogger != null)
+                apduLogger.logFailure(getTerminalName(), cmd, e, System.nanoTime() - start);
+            throw e instanceof TransportException ? (TransportException) e : new TransportException(e);
+        }
+        long elapsed = System.nanoTime() - start;
 
-        long elapsed = -System.currentTimeMillis();
-        ResponseAPDU response = channel.transmit(cmd);
-        elapsed += System.currentTimeMillis();
+        metrics.record(cmd, response, elapsed);
+        if (STARTUP_TIMING && firstExchange.compareAndSet(true, false))
+            reportStartup(System.currentTimeMillis());
+        if (recorder != null)
+            record(start, elapsed, cmd, response);
 
-        if (bDebug)
-            log(response, elapsed);
+        // formatted and written by the logger thread
+        if (apduLogger != null)
+            apduLogger.log(getTerminalName(), cmd, response, elapsed);
 
         return response;
     }
 
-    private void log(CommandAPDU cmd) {
-        System.out.printf("--> %s (%d)%n", Util.toHex(cmd.getBytes()), cmd.getBytes().length);
+    /**
+     * Prints the time from the JVM start to the first exchange finished at {@code now}.
+     * The management classes are loaded after the measurement.
+     *
+     * @param now time of the first exchange in milliseconds since the epoch
+     */
+    private static void reportStartup(long now) {
+        long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.err.printf("Time to first APDU: %d ms%n", now - start);
     }
 
-    private void log(ResponseAPDU response, long time) {
-        String swStr = String.format("%02X", response.getSW());
-        byte[] data = response.getData();
-        if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d) [%d ms]%n", Util.toHex(data), swStr, data.length, time);
-            return;
+    /**
+     * Records the finished exchange. Recording is stopped if the trace cannot be written,
+     * the communication with the card continues.
+     *
+     * @param start    start of the exchange as given by {@link System#nanoTime()}
+     * @param elapsed  duration of the exchange in nanoseconds
+     * @param cmd      sent Command APDU
+     * @param response received Response APDU
+     */
+    private void record(long start, long elapsed, CommandAPDU cmd, ResponseAPDU response) {
+        try {
+            recorder.write(start, elapsed, cmd.getBytes(), response.getBytes());
+        } catch (IOException e) {
+            System.err.println("Recording the APDUs failed: " + e.getMessage());
+            stopRecording();
         }
-
-        System.out.printf("<-- %s [%d ms]%n", swStr, time);
     }
 
+    /**
+     * Enables or disables the debug output. The APDU exchanges are logged
+     * asynchronously by the {@link ApduLogger} of the process.
+     *
+     * @param bDebug true if the debug output should be printed
+     */
     public void setBDebug(boolean bDebug) {
         this.bDebug = bDebug;
+        apduLogger = bDebug ? ApduLogger.getInstance() : ApduLogger.fromProperties();
     }
 
 }
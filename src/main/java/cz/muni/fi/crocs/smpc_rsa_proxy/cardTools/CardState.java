@@ -0,0 +1,210 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
+
+import javax.smartcardio.CommandAPDU;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link CardState} class represents the host-side model of the applet state,
+ * built from the responses of the applet.
+ * <p>
+ * The model is used to skip the commands whose effect is already known, e.g.
+ * repeated resets or uploads of the same keys and messages. Anything that is not
+ * known for certain is {@code UNKNOWN}, so the commands are sent as usual.
+ * Whenever the applet responds unexpectedly, the model is invalidated.
+ * <p>
+ * If the card is shared with other hosts, the tracking should be disabled,
+ * as the model cannot see their commands. A disabled model records nothing
+ * and stays unknown.
+ *
+ * @author Lukas Zaoral
+ */
+public class CardState {
+
+    /**
+     * Enum representing the knowledge of the keys on the card.
+     */
+    public enum Keys {
+        UNKNOWN,
+        ABSENT,
+        PRESENT
+    }
+
+    private final boolean enabled;
+
+    private byte[] selected = null;
+    private Keys keys = Keys.UNKNOWN;
+    private String keyFingerprint = null;
+    private String messageFingerprint = null;
+
+    /**
+     * Creates an unknown state.
+     *
+     * @param enabled true if the state should be tracked
+     */
+    public CardState(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Checks whether the applet with given {@code aid} is selected.
+     *
+     * @param aid applet ID
+     * @return true if the applet is known to be selected
+     */
+    public synchronized boolean isSelected(byte[] aid) {
+        return selected != null && Arrays.equals(selected, aid);
+    }
+
+    /**
+     * Records the selection of the applet with given {@code aid}.
+     * The state of the newly selected applet is unknown.
+     *
+     * @param aid applet ID
+     */
+    public synchronized void setSelected(byte[] aid) {
+        if (!enabled)
+            return;
+
+        selected = aid.clone();
+        invalidate();
+    }
+
+    /**
+     * Forgets everything including the selected applet, e.g. after reconnecting to the card.
+     */
+    public synchronized void deselect() {
+        selected = null;
+        invalidate();
+    }
+
+    /**
+     * Forgets the state of the selected applet.
+     */
+    public synchronized void invalidate() {
+        keys = Keys.UNKNOWN;
+        keyFingerprint = null;
+        messageFingerprint = null;
+    }
+
+    /**
+     * Records the reset of the applet.
+     */
+    public synchronized void reset() {
+        if (!enabled)
+            return;
+
+        keys = Keys.ABSENT;
+        keyFingerprint = null;
+        messageFingerprint = null;
+    }
+
+    /**
+     * Checks whether the applet is known to be in the state after reset.
+     *
+     * @return true if no keys and message are set
+     */
+    public synchronized boolean isEmpty() {
+        return keys == Keys.ABSENT && messageFingerprint == null;
+    }
+
+    /**
+     * Returns the knowledge of the keys on the card.
+     *
+     * @return key state
+     */
+    public synchronized Keys getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the fingerprint of the keys set by the host.
+     *
+     * @return fingerprint or null if unknown or generated on the card
+     */
+    public synchronized String getKeyFingerprint() {
+        return keyFingerprint;
+    }
+
+    /**
+     * Records that the keys are present on the card.
+     *
+     * @param fingerprint fingerprint of the keys set by the host or null if unknown
+     */
+    public synchronized void setKeys(String fingerprint) {
+        if (!enabled)
+            return;
+
+        keys = Keys.PRESENT;
+        keyFingerprint = fingerprint;
+    }
+
+    /**
+     * Records that some keys are present on the card, e.g. because the applet
+     * has accepted a command requiring them.
+     */
+    public synchronized void confirmKeys() {
+        if (!enabled || keys == Keys.PRESENT)
+            return;
+
+        keys = Keys.PRESENT;
+        keyFingerprint = null;
+    }
+
+    /**
+     * Checks whether the message with given {@code fingerprint} is set.
+     *
+     * @param fingerprint fingerprint of the message
+     * @return true if the message is known to be set
+     */
+    public synchronized boolean isMessageSet(String fingerprint) {
+        return messageFingerprint != null && messageFingerprint.equals(fingerprint);
+    }
+
+    /**
+     * Records the message set on the card.
+     *
+     * @param fingerprint fingerprint of the message or null if unknown
+     */
+    public synchronized void setMessage(String fingerprint) {
+        if (!enabled)
+            return;
+
+        messageFingerprint = fingerprint;
+    }
+
+    /**
+     * Computes the fingerprint of the data of the given command lists.
+     *
+     * @param cmds lists of commands
+     * @return hex string with the fingerprint
+     */
+    @SafeVarargs
+    public static String fingerprint(List<CommandAPDU>... cmds) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (List<CommandAPDU> list : cmds) {
+            for (CommandAPDU c : list) {
+                byte[] bytes = c.getBytes();
+                digest.update(new byte[]{(byte) (bytes.length >> 24), (byte) (bytes.length >> 16),
+                        (byte) (bytes.length >> 8), (byte) bytes.length});
+                digest.update(bytes);
+            }
+
+            // separate the lists
+            digest.update((byte) 0xFF);
+        }
+
+        return Util.toHex(digest.digest(), 0, 16);
+    }
+
+}
@@ -0,0 +1,327 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The {@link DataFile} class represents a file with keys, messages or signatures
+ * in the hex text format, one number per line, or in the binary format.
+ * <p>
+ * The binary format starts with a header followed by the length-prefixed records,
+ * all numbers are big-endian:
+ * <pre>
+ *     int   MAGIC
+ *     byte  VERSION
+ *     byte  number of records
+ *     short key size in bits
+ *     int   CRC32 checksum of the records
+ *     records: int length, byte[] data
+ * </pre>
+ * The format of the read files is detected automatically, the format of the written
+ * files is selected by the {@code FORMAT_PROPERTY} system property.
+ *
+ * @author Lukas Zaoral
+ */
+public class DataFile {
+
+    /**
+     * System property selecting the format of the written files,
+     * {@code hex} (default) or {@code binary}
+     */
+    public static final String FORMAT_PROPERTY = "smpc.fileFormat";
+
+    /**
+     * Magic number of the binary format, "SMPF"
+     */
+    public static final int MAGIC = 0x534D5046;
+
+    /**
+     * Version of the binary format
+     */
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_RECORD_LENGTH = 1 << 16;
+
+    private final int keyBits;
+    private final byte[][] records;
+    private final String[] lines;
+
+    private DataFile(int keyBits, byte[][] records, String[] lines) {
+        this.keyBits = keyBits;
+        this.records = records;
+        this.lines = lines;
+    }
+
+    /**
+     * Checks whether the files should be written in the binary format.
+     *
+     * @return true if the binary format is selected
+     */
+    public static boolean isBinary() {
+        String format = System.getProperty(FORMAT_PROPERTY, "hex");
+        if (format.equals("binary"))
+            return true;
+
+        if (format.equals("hex"))
+            return false;
+
+        throw new IllegalArgumentException(String.format("Wrong file format '%s'.", format));
+    }
+
+    /**
+     * Returns the key size stored in the header.
+     *
+     * @return key size in bits or 0 if read from the hex format
+     */
+    public int getKeyBits() {
+        return keyBits;
+    }
+
+    /**
+     * Returns the given record.
+     *
+     * @param index index of the record
+     * @return byte array with the number
+     */
+    public byte[] get(int index) {
+        return records[index];
+    }
+
+    /**
+     * Returns the given record in the hex format. The original line is returned
+     * if read from the hex format.
+     *
+     * @param index index of the record
+     * @return hex string with the number
+     */
+    public String getHex(int index) {
+        return lines != null ? lines[index] : Util.toHex(records[index]);
+    }
+
+    /**
+     * Reads the {@code fileName} file with exactly {@code count} records in any format.
+     *
+     * @param fileName file name
+     * @param count    number of records
+     * @return read file
+     * @throws FileNotFoundException if the file is missing
+     * @throws IOException           if the file cannot be read or has a wrong format
+     */
+    public static DataFile read(String fileName, int count) throws IOException {
+        try (FileChannel channel = open(fileName)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size >= HEADER_LENGTH && buffer.getInt(0) == MAGIC)
+                return readBinary(fileName, buffer, count);
+
+            return readHex(fileName, buffer, count);
+        }
+    }
+
+    /**
+     * Opens the given file for reading.
+     *
+     * @param fileName file name
+     * @return file channel
+     * @throws FileNotFoundException if the file is missing
+     * @throws IOException           if the file cannot be opened
+     */
+    private static FileChannel open(String fileName) throws IOException {
+        try {
+            return FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(fileName);
+        }
+    }
+
+    /**
+     * Parses the binary format.
+     *
+     * @param fileName file name
+     * @param buffer   file content
+     * @param count    expected number of records
+     * @return read file
+     * @throws IOException if the file has a wrong format or checksum
+     */
+    private static DataFile readBinary(String fileName, ByteBuffer buffer, int count) throws IOException {
+        // cast for the Java 8 runtime, newer JDKs link the covariant ByteBuffer methods
+        ((Buffer) buffer).position(4);
+        byte version = buffer.get();
+        int stored = buffer.get() & 0xFF;
+        int keyBits = buffer.getShort() & 0xFFFF;
+        int checksum = buffer.getInt();
+
+        if (version != VERSION || stored != count)
+            throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum)
+            throw new IOException(String.format("Wrong '%s' file checksum.", fileName));
+
+        byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4)
+                throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() || length > MAX_RECORD_LENGTH)
+                throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+            records[i] = new byte[length];
+            buffer.get(records[i]);
+        }
+
+        if (buffer.hasRemaining())
+            throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+        return new DataFile(keyBits, records, null);
+    }
+
+    /**
+     * Parses the hex text format.
+     *
+     * @param fileName file name
+     * @param buffer   file content
+     * @param count    expected number of lines
+     * @return read file
+     * @throws IOException if the file has a wrong format
+     */
+    private static DataFile readHex(String fileName, ByteBuffer buffer, int count) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(StandardCharsets.US_ASCII.decode(buffer).toString()));
+
+        byte[][] records = new byte[count][];
+        String[] lines = new String[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                lines[i] = reader.readLine();
+                if (lines[i] == null)
+                    throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+                records[i] = Util.hexStringToByteArray(lines[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Wrong '%s' file format.", fileName), e);
+        }
+
+        if (reader.readLine() != null)
+            throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+        return new DataFile(0, records, lines);
+    }
+
+    /**
+     * Writes the given {@code records} to the {@code fileName} file in the binary format
+     * with a single gathered write.
+     *
+     * @param fileName file name
+     * @param keyBits  key size in bits
+     * @param records  byte arrays with the numbers
+     * @throws IOException if the file cannot be created or written to
+     */
+    public static void writeBinary(String fileName, int keyBits, byte[]... records) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[2 * records.length + 1];
+
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < records.length; i++) {
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(0, records[i].length);
+            crc.update(length.array());
+            crc.update(records[i]);
+
+            buffers[2 * i + 1] = length;
+            buffers[2 * i + 2] = ByteBuffer.wrap(records[i]);
+        }
+
+        buffers[0] = ByteBuffer.allocate(HEADER_LENGTH)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .put((byte) records.length)
+                .putShort((short) keyBits)
+                .putInt((int) crc.getValue());
+        ((Buffer) buffers[0]).flip();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = 0;
+            for (ByteBuffer b : buffers)
+                remaining += b.remaining();
+
+            while (remaining > 0)
+                remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Writes the given {@code lines} to the {@code fileName} file in the hex text format.
+     *
+     * @param fileName file name
+     * @param lines    hex strings with the numbers
+     * @throws IOException if the file cannot be created or written to
+     */
+    public static void writeHex(String fileName, String... lines) throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (String line : lines)
+            data.append(String.format("%s%n", line));
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = StandardCharsets.US_ASCII.encode(data.toString());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    /**
+     * Converts the {@code input} file with {@code count} records to the other format
+     * and stores it to the {@code output} file. The numbers of the key size are written
+     * in the full length, the others without the leading zeroes.
+     *
+     * @param input  input file name
+     * @param output output file name
+     * @param count  number of records
+     * @return true if converted to the binary format, false if to the hex format
+     * @throws IOException if the input cannot be read or has a wrong format
+     *                     or the output cannot be created or written to
+     */
+    public static boolean convert(String input, String output, int count) throws IOException {
+        DataFile file = read(input, count);
+
+        if (file.lines != null) {
+            int maxLength = 0;
+            for (byte[] r : file.records)
+                maxLength = Math.max(maxLength, r.length);
+
+            // round up to the multiple of 2048 bits
+            int keyBits = (maxLength + 255) / 256 * 2048;
+            writeBinary(output, keyBits, file.records);
+            return true;
+        }
+
+        List<String> lines = new ArrayList<>(count);
+        for (byte[] r : file.records)
+            lines.add(8 * r.length == file.keyBits ? Util.toHex(r) : Util.toHexTrimmed(r));
+
+        writeHex(output, lines.toArray(new String[0]));
+        return false;
+    }
+
+}
@@ -0,0 +1,370 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+
+/**
+ * The {@link MessageEncoder} class represents the host-side preparation of the message
+ * to be signed. The document is hashed and the hash is encoded by the PKCS#1 v1.5 or PSS
+ * signature encoding (RFC 8017) into a number of the given length.
+ * <p>
+ * The document is streamed through a direct buffer reused by the hashing thread, so documents
+ * of any size are hashed with a constant memory use and many documents can be hashed in parallel
+ * by a single encoder. The file name {@code -} stands for the standard input.
+ * <p>
+ * The applets accept only the messages smaller than the client partial modulus,
+ * so the encoded message is as long as the partial modulus instead of the public
+ * modulus. The standard verifiers expect the encoded message as long as the public
+ * modulus and reject such signatures, {@link #verify(byte[], byte[], BigInteger, BigInteger)}
+ * expects the same encoded message length as used for signing.
+ *
+ * @author Lukas Zaoral
+ */
+public class MessageEncoder {
+
+    /**
+     * System property selecting the signature encoding,
+     * {@code pkcs1} (default) or {@code pss}
+     */
+    public static final String PADDING_PROPERTY = "smpc.padding";
+
+    /**
+     * System property selecting the hash function,
+     * {@code SHA-256} (default), {@code SHA-384} or {@code SHA-512}
+     */
+    public static final String DIGEST_PROPERTY = "smpc.digest";
+
+    /**
+     * Length of the read buffer
+     */
+    private static final int BUFFER_LENGTH = 1 << 20;
+
+    /**
+     * Read buffers reused by the hashing threads
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_LENGTH));
+
+    /**
+     * DER encoded DigestInfo prefixes of the supported hash functions
+     */
+    private static final byte[] SHA256_PREFIX = Util.hexStringToByteArray("3031300D060960864801650304020105000420");
+    private static final byte[] SHA384_PREFIX = Util.hexStringToByteArray("3041300D060960864801650304020205000430");
+    private static final byte[] SHA512_PREFIX = Util.hexStringToByteArray("3051300D060960864801650304020305000440");
+
+    /**
+     * Minimal length of the PKCS#1 v1.5 padding string
+     */
+    private static final int MIN_PADDING_LENGTH = 8;
+
+    private final String algorithm;
+    private final byte[] prefix;
+    private final boolean pss;
+    private final int length;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Creates an encoder of the messages.
+     *
+     * @param algorithm name of the hash function
+     * @param pss       true if the PSS encoding should be used instead of PKCS#1 v1.5
+     * @param length    length of the encoded message in bytes
+     * @throws IllegalArgumentException if the hash function is not supported
+     *                                  or the encoded message would not fit the length
+     */
+    public MessageEncoder(String algorithm, boolean pss, int length) {
+        this.algorithm = algorithm;
+        this.prefix = getPrefix(algorithm);
+        this.pss = pss;
+        this.length = length;
+
+        int hashLength = newDigest().getDigestLength();
+        int minLength = pss ? 2 * hashLength + 2 : prefix.length + hashLength + MIN_PADDING_LENGTH + 3;
+        if (length < minLength)
+            throw new IllegalArgumentException(String.format("The %s hash does not fit %d bytes.", algorithm, length));
+    }
+
+    /**
+     * Creates an encoder of the messages configured by the {@code PADDING_PROPERTY}
+     * and {@code DIGEST_PROPERTY} properties.
+     *
+     * @param length length of the encoded message in bytes
+     * @return encoder of the messages
+     * @throws IllegalArgumentException if the properties have wrong values
+     */
+    public static MessageEncoder fromProperties(int length) {
+        String padding = System.getProperty(PADDING_PROPERTY, "pkcs1");
+        if (!padding.equals("pkcs1") && !padding.equals("pss"))
+            throw new IllegalArgumentException(String.format("Unknown padding '%s'.", padding));
+
+        return new MessageEncoder(System.getProperty(DIGEST_PROPERTY, "SHA-256"), padding.equals("pss"), length);
+    }
+
+    /**
+     * Hashes the {@code fileName} document and encodes the hash.
+     *
+     * @param fileName file name of the document or {@code -} for the standard input
+     * @return encoded message
+     * @throws FileNotFoundException if the document is missing
+     * @throws IOException           if the document cannot be read
+     */
+    public byte[] encodeFile(String fileName) throws IOException {
+        return encode(digest(fileName));
+    }
+
+    /**
+     * Hashes the {@code fileName} document.
+     *
+     * @param fileName file name of the document or {@code -} for the standard input
+     * @return hash of the document
+     * @throws FileNotFoundException if the document is missing
+     * @throws IOException           if the document cannot be read
+     */
+    public byte[] digest(String fileName) throws IOException {
+        if (fileName.equals("-"))
+            return digest(Channels.newChannel(System.in));
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return digest(channel);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(fileName);
+        }
+    }
+
+    /**
+     * Hashes the content of the given {@code channel} until its end.
+     *
+     * @param channel channel with the document
+     * @return hash of the document
+     * @throws IOException if the channel cannot be read
+     */
+    public byte[] digest(ReadableByteChannel channel) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = BUFFERS.get();
+
+        // cast for the Java 8 runtime, newer JDKs link the covariant ByteBuffer methods
+        ((Buffer) buffer).clear();
+        while (channel.read(buffer) >= 0) {
+            ((Buffer) buffer).flip();
+            digest.update(buffer);
+            ((Buffer) buffer).clear();
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Encodes the given {@code hash} of the document.
+     *
+     * @param hash hash of the document
+     * @return encoded message
+     * @throws IllegalArgumentException if the hash has a wrong length
+     */
+    public byte[] encode(byte[] hash) {
+        if (hash.length != newDigest().getDigestLength())
+            throw new IllegalArgumentException(String.format("Wrong %s hash length.", algorithm));
+
+        return pss ? encodePss(hash) : encodePkcs1(hash);
+    }
+
+    /**
+     * Verifies the {@code signature} of the document with the given {@code hash}
+     * by the public key. The encoded message is expected to be of the length
+     * of this encoder, as produced by {@link #encode(byte[])}.
+     *
+     * @param hash      hash of the document
+     * @param signature signature
+     * @param e         public exponent
+     * @param n         public modulus
+     * @return true if the signature is valid
+     * @throws IllegalArgumentException if the hash has a wrong length
+     */
+    public boolean verify(byte[] hash, byte[] signature, BigInteger e, BigInteger n) {
+        if (hash.length != newDigest().getDigestLength())
+            throw new IllegalArgumentException(String.format("Wrong %s hash length.", algorithm));
+
+        BigInteger s = new BigInteger(1, signature);
+        if (s.compareTo(n) >= 0)
+            return false;
+
+        BigInteger m = s.modPow(e, n);
+        if (m.bitLength() > 8 * length)
+            return false;
+
+        byte[] bytes = m.toByteArray();
+        int start = Util.skipLeadingZeroes(bytes, 0, bytes.length);
+        byte[] em = new byte[length];
+        System.arraycopy(bytes, start, em, length - (bytes.length - start), bytes.length - start);
+
+        return pss ? verifyPss(hash, em) : MessageDigest.isEqual(em, encodePkcs1(hash));
+    }
+
+    /**
+     * Encodes the {@code hash} by EMSA-PKCS1-v1_5,
+     * i.e. {@code 00 01 FF..FF 00 DigestInfo}.
+     *
+     * @param hash hash of the document
+     * @return encoded message
+     */
+    private byte[] encodePkcs1(byte[] hash) {
+        byte[] em = new byte[length];
+        int t = length - prefix.length - hash.length;
+
+        em[1] = 0x01;
+        Arrays.fill(em, 2, t - 1, (byte) 0xFF);
+        System.arraycopy(prefix, 0, em, t, prefix.length);
+        System.arraycopy(hash, 0, em, t + prefix.length, hash.length);
+
+        return em;
+    }
+
+    /**
+     * Encodes the {@code hash} by EMSA-PSS with the MGF1 of the same hash function
+     * and a random salt as long as the hash. The most significant bit is cleared,
+     * so the encoded message is smaller than any modulus of {@code 8 * length} bits.
+     *
+     * @param hash hash of the document
+     * @return encoded message
+     */
+    private byte[] encodePss(byte[] hash) {
+        int hashLength = hash.length;
+        byte[] salt = new byte[hashLength];
+        random.nextBytes(salt);
+
+        MessageDigest digest = newDigest();
+        digest.update(new byte[8]);
+        digest.update(hash);
+        byte[] h = digest.digest(salt);
+
+        // DB = PS || 0x01 || salt
+        int dbLength = length - hashLength - 1;
+        byte[] em = new byte[length];
+        em[dbLength - hashLength - 1] = 0x01;
+        System.arraycopy(salt, 0, em, dbLength - hashLength, hashLength);
+
+        byte[] mask = mgf1(h, dbLength);
+        for (int i = 0; i < dbLength; i++)
+            em[i] ^= mask[i];
+
+        em[0] &= 0x7F;
+        System.arraycopy(h, 0, em, dbLength, hashLength);
+        em[length - 1] = (byte) 0xBC;
+
+        return em;
+    }
+
+    /**
+     * Checks that the {@code em} encoded message is the EMSA-PSS encoding
+     * of the {@code hash} as produced by {@link #encodePss(byte[])}.
+     *
+     * @param hash hash of the document
+     * @param em   encoded message
+     * @return true if the encoding is consistent
+     */
+    private boolean verifyPss(byte[] hash, byte[] em) {
+        int hashLength = hash.length;
+        int dbLength = length - hashLength - 1;
+        if (em[length - 1] != (byte) 0xBC || (em[0] & 0x80) != 0)
+            return false;
+
+        byte[] h = Arrays.copyOfRange(em, dbLength, dbLength + hashLength);
+        byte[] db = mgf1(h, dbLength);
+        for (int i = 0; i < dbLength; i++)
+            db[i] ^= em[i];
+        db[0] &= 0x7F;
+
+        // DB = PS || 0x01 || salt
+        int separator = dbLength - hashLength - 1;
+        for (int i = 0; i < separator; i++) {
+            if (db[i] != 0x00)
+                return false;
+        }
+
+        if (db[separator] != 0x01)
+            return false;
+
+        MessageDigest digest = newDigest();
+        digest.update(new byte[8]);
+        digest.update(hash);
+        digest.update(db, separator + 1, hashLength);
+        return MessageDigest.isEqual(h, digest.digest());
+    }
+
+    /**
+     * Generates the {@code maskLength} bytes long mask from the {@code seed}
+     * by the MGF1 mask generation function.
+     *
+     * @param seed       seed of the mask
+     * @param maskLength length of the mask
+     * @return mask
+     */
+    private byte[] mgf1(byte[] seed, int maskLength) {
+        MessageDigest digest = newDigest();
+        byte[] mask = new byte[maskLength];
+        byte[] counter = new byte[4];
+
+        for (int off = 0, i = 0; off < maskLength; i++) {
+            counter[0] = (byte) (i >>> 24);
+            counter[1] = (byte) (i >>> 16);
+            counter[2] = (byte) (i >>> 8);
+            counter[3] = (byte) i;
+
+            digest.update(seed);
+            byte[] block = digest.digest(counter);
+            int len = Math.min(block.length, maskLength - off);
+            System.arraycopy(block, 0, mask, off, len);
+            off += len;
+        }
+
+        return mask;
+    }
+
+    /**
+     * Creates a new instance of the hash function.
+     *
+     * @return message digest
+     */
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(String.format("Unsupported hash '%s'.", algorithm), e);
+        }
+    }
+
+    /**
+     * Returns the DigestInfo prefix of the given hash function.
+     *
+     * @param algorithm name of the hash function
+     * @return DER encoded prefix
+     * @throws IllegalArgumentException if the hash function is not supported
+     */
+    private static byte[] getPrefix(String algorithm) {
+        switch (algorithm) {
+            case "SHA-256":
+                return SHA256_PREFIX;
+            case "SHA-384":
+                return SHA384_PREFIX;
+            case "SHA-512":
+                return SHA512_PREFIX;
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported hash '%s'.", algorithm));
+        }
+    }
+
+}
@@ -1,15 +1,51 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.cardTools;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
 import java.util.Arrays;
 
 /**
  * The {@link Util} static class provides tools for conversion
  * between byte arrays and hex strings.
+ * <p>
+ * The conversions are table driven. Apart from the string based methods,
+ * the data can be encoded into or decoded from caller-supplied arrays
+ * and buffers without any temporary objects.
  *
  * @author Vasilios Mavroudis, Petr Svenda, adapted by Lukas Zaoral
  */
 public class Util {
 
+    /**
+     * Upper case hex digits
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Value of an invalid hex digit and of a whitespace in the {@code HEX_VALUES} table
+     */
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+
+    /**
+     * Values of ASCII hex digits, {@code INVALID} or {@code WHITESPACE} otherwise
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++)
+            HEX_VALUES[i] = Character.isWhitespace(i) ? WHITESPACE : INVALID;
+
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte) i;
+
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
     /**
      * Converts the given byte array to a hex string
      *
@@ -17,12 +53,22 @@ public class Util {
      * @return converted hex string
      */
     public static String toHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-
-        for (byte b : bytes)
-            result.append(String.format("%02X", b));
+        return toHex(bytes, 0, bytes.length);
+    }
 
-        return result.toString();
+    /**
+     * Converts {@code len} bytes of the given byte array starting
+     * at {@code off} to a hex string
+     *
+     * @param bytes byte array
+     * @param off   offset of the first byte
+     * @param len   number of bytes
+     * @return converted hex string
+     */
+    public static String toHex(byte[] bytes, int off, int len) {
+        char[] hex = new char[2 * len];
+        toHex(bytes, off, len, hex, 0);
+        return new String(hex);
     }
 
     /**
@@ -33,42 +79,312 @@ public class Util {
      * @return converted and trimmed hex string
      */
     public static String toHexTrimmed(byte[] bytes) {
-        return toHex(trimLeadingZeroes(bytes));
+        int start = skipLeadingZeroes(bytes, 0, bytes.length);
+        return toHex(bytes, start, bytes.length - start);
     }
 
     /**
-     * Converts the given hex string to a byte array
+     * Encodes {@code len} bytes of {@code src} starting at {@code srcOff}
+     * as hex digits into {@code dst} starting at {@code dstOff}.
+     *
+     * @param src    source byte array
+     * @param srcOff offset of the first source byte
+     * @param len    number of bytes to encode
+     * @param dst    destination char array with at least {@code 2 * len} free chars
+     * @param dstOff offset of the first destination char
+     * @return number of chars written
+     */
+    public static int toHex(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+        for (int i = srcOff; i < srcOff + len; i++) {
+            dst[dstOff++] = HEX_DIGITS[(src[i] >> 4) & 0x0F];
+            dst[dstOff++] = HEX_DIGITS[src[i] & 0x0F];
+        }
+
+        return 2 * len;
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} starting at {@code srcOff}
+     * as ASCII hex digits into {@code dst} starting at {@code dstOff}.
+     *
+     * @param src    source byte array
+     * @param srcOff offset of the first source byte
+     * @param len    number of bytes to encode
+     * @param dst    destination byte array with at least {@code 2 * len} free bytes
+     * @param dstOff offset of the first destination byte
+     * @return number of bytes written
+     */
+    public static int toHex(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        for (int i = srcOff; i < srcOff + len; i++) {
+            dst[dstOff++] = (byte) HEX_DIGITS[(src[i] >> 4) & 0x0F];
+            dst[dstOff++] = (byte) HEX_DIGITS[src[i] & 0x0F];
+        }
+
+        return 2 * len;
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src} as ASCII hex digits into {@code dst}.
+     * The positions of both buffers are advanced.
+     *
+     * @param src source buffer
+     * @param dst destination buffer with at least {@code 2 * src.remaining()} bytes remaining
+     * @return number of bytes written
+     */
+    public static int toHex(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            dst.put((byte) HEX_DIGITS[(b >> 4) & 0x0F]);
+            dst.put((byte) HEX_DIGITS[b & 0x0F]);
+        }
+
+        return 2 * len;
+    }
+
+    /**
+     * Converts the given hex string to a byte array. The leading zero bytes
+     * are trimmed, so a string of zero digits only is converted to an empty array.
      *
      * @param str hex string
      * @return converted byte array
      */
     public static byte[] hexStringToByteArray(String str) {
-        String sanitized = str.replaceAll("\\s+", "");
-        if (sanitized.length() % 2 != 0)
-            sanitized = "0" + sanitized;
-
-        byte[] b = new byte[sanitized.length() / 2];
-        for (int i = 0; i < b.length; i++) {
-            int index = i * 2;
-            b[i] = (byte) Integer.parseInt(sanitized.substring(index, index + 2), 16);
+        int start = 0;
+        while (start < str.length() && (str.charAt(start) == '0' || hexValue(str.charAt(start)) == WHITESPACE))
+            start++;
+
+        // exact unless the string contains whitespace
+        byte[] b = new byte[(str.length() - start + 1) / 2];
+        int len = fromHex(str, start, str.length() - start, b, 0);
+        return len == b.length ? b : Arrays.copyOf(b, len);
+    }
+
+    /**
+     * Decodes {@code len} chars of {@code src} starting at {@code srcOff} into {@code dst}
+     * starting at {@code dstOff}. Whitespace is skipped. Odd number of hex digits
+     * is decoded as if prefixed with a zero digit.
+     *
+     * @param src    source chars
+     * @param srcOff offset of the first source char
+     * @param len    number of chars to decode
+     * @param dst    destination byte array
+     * @param dstOff offset of the first destination byte
+     * @return number of bytes written
+     * @throws NumberFormatException if the source contains a non-hex character
+     */
+    public static int fromHex(CharSequence src, int srcOff, int len, byte[] dst, int dstOff) {
+        int pos = dstOff;
+        int high = INVALID;
+
+        for (int i = srcOff; i < srcOff + len; i++) {
+            byte value = hexValue(src.charAt(i));
+            if (value == WHITESPACE)
+                continue;
+
+            if (high == INVALID) {
+                high = value;
+                continue;
+            }
+
+            dst[pos++] = (byte) ((high << 4) | value);
+            high = INVALID;
         }
 
-        return trimLeadingZeroes(b);
+        return finish(dst, dstOff, pos, high);
     }
 
     /**
-     * Removes leading zero bytes from given byte array
+     * Decodes {@code len} chars of {@code src} starting at {@code srcOff} into {@code dst}
+     * starting at {@code dstOff}. Whitespace is skipped. Odd number of hex digits
+     * is decoded as if prefixed with a zero digit.
+     *
+     * @param src    source char array
+     * @param srcOff offset of the first source char
+     * @param len    number of chars to decode
+     * @param dst    destination byte array
+     * @param dstOff offset of the first destination byte
+     * @return number of bytes written
+     * @throws NumberFormatException if the source contains a non-hex character
+     */
+    public static int fromHex(char[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        int pos = dstOff;
+        int high = INVALID;
+
+        for (int i = srcOff; i < srcOff + len; i++) {
+            byte value = hexValue(src[i]);
+            if (value == WHITESPACE)
+                continue;
+
+            if (high == INVALID) {
+                high = value;
+                continue;
+            }
+
+            dst[pos++] = (byte) ((high << 4) | value);
+            high = INVALID;
+        }
+
+        return finish(dst, dstOff, pos, high);
+    }
+
+    /**
+     * Decodes {@code len} ASCII chars of {@code src} starting at {@code srcOff} into {@code dst}
+     * starting at {@code dstOff}. Whitespace is skipped. Odd number of hex digits
+     * is decoded as if prefixed with a zero digit.
+     *
+     * @param src    source ASCII byte array
+     * @param srcOff offset of the first source byte
+     * @param len    number of bytes to decode
+     * @param dst    destination byte array
+     * @param dstOff offset of the first destination byte
+     * @return number of bytes written
+     * @throws NumberFormatException if the source contains a non-hex character
+     */
+    public static int fromHex(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        int pos = dstOff;
+        int high = INVALID;
+
+        for (int i = srcOff; i < srcOff + len; i++) {
+            byte value = hexValue((char) (src[i] & 0xFF));
+            if (value == WHITESPACE)
+                continue;
+
+            if (high == INVALID) {
+                high = value;
+                continue;
+            }
+
+            dst[pos++] = (byte) ((high << 4) | value);
+            high = INVALID;
+        }
+
+        return finish(dst, dstOff, pos, high);
+    }
+
+    /**
+     * Decodes the remaining ASCII chars of {@code src} into {@code dst}. Whitespace
+     * is skipped. Odd number of hex digits is decoded as if prefixed with a zero digit.
+     * The positions of both buffers are advanced, unless the source contains
+     * a non-hex character.
+     *
+     * @param src source buffer
+     * @param dst destination buffer
+     * @return number of bytes written
+     * @throws NumberFormatException if the source contains a non-hex character
+     */
+    public static int fromHex(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        int pos = start;
+        int high = INVALID;
+
+        // absolute indices, so the positions stay unchanged on a non-hex character
+        for (int i = src.position(); i < src.limit(); i++) {
+            byte value = hexValue((char) (src.get(i) & 0xFF));
+            if (value == WHITESPACE)
+                continue;
+
+            if (high == INVALID) {
+                high = value;
+                continue;
+            }
+
+            dst.put(pos++, (byte) ((high << 4) | value));
+            high = INVALID;
+        }
+
+        int written = finish(dst, start, pos, high);
+
+        // cast for the Java 8 runtime, newer JDKs link the covariant ByteBuffer methods
+        ((Buffer) src).position(src.limit());
+        ((Buffer) dst).position(dst.position() + written);
+        return written;
+    }
+
+    /**
+     * Completes the decoding of the bytes written to {@code dst} between {@code start}
+     * and {@code pos}. If an odd number of hex digits has been decoded, the {@code last}
+     * digit is pending and all decoded digits are shifted by one digit, as if the source
+     * was prefixed with a zero digit. The shift touches only the decoded bytes, so
+     * the source is scanned once.
+     *
+     * @param dst   destination byte array
+     * @param start offset of the first decoded byte
+     * @param pos   offset after the last decoded byte
+     * @param last  value of the pending digit or {@code INVALID}
+     * @return number of bytes written
+     */
+    private static int finish(byte[] dst, int start, int pos, int last) {
+        if (last == INVALID)
+            return pos - start;
+
+        int carry = 0;
+        for (int i = start; i < pos; i++) {
+            int b = dst[i] & 0xFF;
+            dst[i] = (byte) ((carry << 4) | (b >>> 4));
+            carry = b & 0x0F;
+        }
+
+        dst[pos] = (byte) ((carry << 4) | last);
+        return pos + 1 - start;
+    }
+
+    /**
+     * Completes the decoding of the bytes written to {@code dst} between {@code start}
+     * and {@code pos} as {@link #finish(byte[], int, int, int)} does. The buffer is accessed
+     * by absolute indices and its position is not changed.
+     *
+     * @param dst   destination buffer
+     * @param start index of the first decoded byte
+     * @param pos   index after the last decoded byte
+     * @param last  value of the pending digit or {@code INVALID}
+     * @return number of bytes written
+     */
+    private static int finish(ByteBuffer dst, int start, int pos, int last) {
+        if (last == INVALID)
+            return pos - start;
+
+        int carry = 0;
+        for (int i = start; i < pos; i++) {
+            int b = dst.get(i) & 0xFF;
+            dst.put(i, (byte) ((carry << 4) | (b >>> 4)));
+            carry = b & 0x0F;
+        }
+
+        dst.put(pos, (byte) ((carry << 4) | last));
+        return pos + 1 - start;
+    }
+
+    /**
+     * Returns the offset of the first non-zero byte of the given array range.
      *
      * @param array byte array
-     * @return trimmed byte array
+     * @param off   offset of the first byte
+     * @param len   number of bytes
+     * @return offset of the first non-zero byte or {@code off + len} if all bytes are zero
      */
-    private static byte[] trimLeadingZeroes(byte[] array) {
-        int startOffset = 0;
+    public static int skipLeadingZeroes(byte[] array, int off, int len) {
+        int i = off;
+        while (i < off + len && array[i] == 0x00)
+            i++;
+
+        return i;
+    }
 
-        while (array[startOffset] == 0x00)
-            startOffset++;
+    /**
+     * Returns the value of the given hex digit.
+     *
+     * @param c hex digit or whitespace
+     * @return value of the digit or {@code WHITESPACE}
+     * @throws NumberFormatException if the char is not a hex digit nor whitespace
+     */
+    private static byte hexValue(char c) {
+        byte value = c < HEX_VALUES.length ? HEX_VALUES[c] : INVALID;
+        if (value == INVALID)
+            throw new NumberFormatException(String.format("Invalid hex character '%c'.", c));
 
-        return Arrays.copyOfRange(array, startOffset, array.length);
+        return value;
     }
 
 }
@@ -0,0 +1,230 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link ApduMetrics} class collects the latencies of all APDU exchanges
+ * keyed by the CLA and INS bytes of the command and the status word
+ * of the response, together with the error and byte counters.
+ * <p>
+ * The metrics are shared by all card managers of the process
+ * and can be exported through JMX or in the Prometheus text format.
+ *
+ * @author Lukas Zaoral
+ */
+public class ApduMetrics implements ApduMetricsMBean {
+
+    /**
+     * JMX object name
+     */
+    public static final String OBJECT_NAME = "cz.muni.fi.crocs.smpc_rsa_proxy:type=ApduMetrics";
+
+    private static final ApduMetrics INSTANCE = new ApduMetrics();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int SW_NO_ERROR = 0x9000;
+
+    /**
+     * Histograms keyed by {@code CLA << 24 | INS << 16 | SW}
+     */
+    private final ConcurrentMap<Integer, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    private final LongAdder errorStatusCount = new LongAdder();
+    private final LongAdder transportErrorCount = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private ApduMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the process.
+     *
+     * @return shared metrics
+     */
+    public static ApduMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server unless already registered.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(INSTANCE, name);
+        } catch (JMException e) {
+            System.err.println("Registering the JMX metrics failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server on a background thread,
+     * so the start of the platform MBean server does not delay the first APDU.
+     */
+    public static void registerMBeanInBackground() {
+        Thread t = new Thread(ApduMetrics::registerMBean, "jmx-register");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Records a finished exchange.
+     *
+     * @param cmd      sent Command APDU
+     * @param response received Response APDU
+     * @param nanos    duration of the exchange in nanoseconds
+     */
+    public void record(CommandAPDU cmd, ResponseAPDU response, long nanos) {
+        int key = (cmd.getCLA() << 24) | (cmd.getINS() << 16) | response.getSW();
+
+        LatencyHistogram histogram = latencies.get(key);
+        if (histogram == null)
+            histogram = latencies.computeIfAbsent(key, k -> new LatencyHistogram());
+
+        histogram.record(nanos);
+
+        if (response.getSW() != SW_NO_ERROR)
+            errorStatusCount.increment();
+
+        bytesSent.add(length(cmd));
+        bytesReceived.add(response.getNr() + 2);
+    }
+
+    /**
+     * Records a failed exchange.
+     */
+    public void recordTransportError() {
+        transportErrorCount.increment();
+    }
+
+    @Override
+    public long getCommandCount() {
+        long count = 0;
+        for (LatencyHistogram h : latencies.values())
+            count += h.getCount();
+
+        return count;
+    }
+
+    @Override
+    public long getErrorStatusCount() {
+        return errorStatusCount.sum();
+    }
+
+    @Override
+    public long getTransportErrorCount() {
+        return transportErrorCount.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP smpc_apdu_latency_seconds Duration of the APDU exchanges.\n");
+        out.append("# TYPE smpc_apdu_latency_seconds summary\n");
+        for (Map.Entry<Integer, LatencyHistogram> e : new TreeMap<>(latencies).entrySet()) {
+            int key = e.getKey();
+            LatencyHistogram h = e.getValue();
+            String labels = String.format("cla=\"%02X\",ins=\"%02X\",sw=\"%04X\"",
+                    key >>> 24, (key >>> 16) & 0xFF, key & 0xFFFF);
+
+            for (double q : QUANTILES)
+                out.append(String.format(Locale.ROOT, "smpc_apdu_latency_seconds{%s,quantile=\"%s\"} %.9f\n",
+                        labels, q, h.getQuantile(q) / 1e9));
+
+            out.append(String.format(Locale.ROOT, "smpc_apdu_latency_seconds_sum{%s} %.9f\n",
+                    labels, h.getSum() / 1e9));
+            out.append(String.format(Locale.ROOT, "smpc_apdu_latency_seconds_count{%s} %d\n",
+                    labels, h.getCount()));
+        }
+
+        appendCounter(out, "smpc_apdu_error_status_total", "Responses with an error status word.",
+                getErrorStatusCount());
+        appendCounter(out, "smpc_apdu_transport_errors_total", "Failed APDU exchanges.",
+                getTransportErrorCount());
+        appendCounter(out, "smpc_apdu_sent_bytes_total", "Bytes sent to the cards.", getBytesSent());
+        appendCounter(out, "smpc_apdu_received_bytes_total", "Bytes received from the cards.", getBytesReceived());
+
+        return out.toString();
+    }
+
+    /**
+     * Stores the metrics in the Prometheus text format to the {@code fileName} file.
+     *
+     * @param fileName file name
+     * @throws IOException if the file cannot be created or written to
+     */
+    public void writePrometheus(String fileName) throws IOException {
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            writer.write(getPrometheusText());
+            writer.flush();
+        }
+    }
+
+    /**
+     * Appends a single counter to the given {@code out}.
+     *
+     * @param out   output
+     * @param name  name of the counter
+     * @param help  description of the counter
+     * @param value value of the counter
+     */
+    private static void appendCounter(StringBuilder out, String name, String help, long value) {
+        out.append(String.format("# HELP %s %s\n# TYPE %s counter\n%s %d\n", name, help, name, name, value));
+    }
+
+    /**
+     * Computes the encoded length of the given {@code cmd} without copying it.
+     *
+     * @param cmd Command APDU
+     * @return length in bytes
+     */
+    private static int length(CommandAPDU cmd) {
+        int nc = cmd.getNc();
+        int ne = cmd.getNe();
+        boolean extended = nc > 255 || ne > 256;
+
+        int length = 4;
+        if (nc > 0)
+            length += (extended ? 3 : 1) + nc;
+
+        if (ne > 0)
+            length += extended ? (nc > 0 ? 2 : 3) : 1;
+
+        return length;
+    }
+
+}
@@ -0,0 +1,41 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.metrics;
+
+/**
+ * The {@link ApduMetricsMBean} interface represents the JMX view
+ * of the {@link ApduMetrics}.
+ *
+ * @author Lukas Zaoral
+ */
+public interface ApduMetricsMBean {
+
+    /**
+     * @return number of exchanged APDUs
+     */
+    long getCommandCount();
+
+    /**
+     * @return number of responses with an error status word
+     */
+    long getErrorStatusCount();
+
+    /**
+     * @return number of failed exchanges
+     */
+    long getTransportErrorCount();
+
+    /**
+     * @return number of sent bytes
+     */
+    long getBytesSent();
+
+    /**
+     * @return number of received bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * @return metrics in the Prometheus text format
+     */
+    String getPrometheusText();
+
+}
@@ -0,0 +1,132 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link LatencyHistogram} class represents a lock-free histogram
+ * of latencies in nanoseconds with logarithmic buckets.
+ * <p>
+ * Similarly to the HDR histogram, each power of two range is split
+ * into {@code 2^(PRECISION_BITS - 1)} linear sub-buckets, so the relative
+ * error of the reported values is below 2 %.
+ *
+ * @author Lukas Zaoral
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of the value kept in the bucket index
+     */
+    private static final int PRECISION_BITS = 6;
+    private static final int LINEAR_BUCKETS = 1 << PRECISION_BITS;
+    private static final int SUB_BUCKETS = 1 << (PRECISION_BITS - 1);
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - PRECISION_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a single latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return number of latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of recorded latencies.
+     *
+     * @return sum in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the largest recorded latency.
+     *
+     * @return maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the approximate value of the given {@code quantile}.
+     *
+     * @param quantile quantile between 0 and 1
+     * @return latency in nanoseconds or 0 if nothing has been recorded
+     */
+    public long getQuantile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(middle(i), getMax());
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Returns the index of the bucket with the given {@code value}.
+     *
+     * @param value non-negative value
+     * @return bucket index
+     */
+    private static int index(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION_BITS - 1);
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the middle value of the bucket with given {@code index}.
+     *
+     * @param index bucket index
+     * @return middle value of the bucket
+     */
+    private static long middle(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return (sub << shift) + (1L << (shift - 1));
+    }
+
+}
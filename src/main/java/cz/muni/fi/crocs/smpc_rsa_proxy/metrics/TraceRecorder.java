@@ -0,0 +1,241 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.metrics;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link TraceRecorder} class records the durations of the proxy phases
+ * and APDU exchanges as spans and writes them in the Chrome trace-event JSON format,
+ * so a run can be inspected in a trace viewer, e.g. {@code chrome://tracing} or Perfetto.
+ * <p>
+ * The recording is enabled by the {@code TRACE_PROPERTY} property with the name
+ * of the trace file, which is written when the process exits. The spans are nested
+ * per thread. The {@code card} spans cover the APDU exchanges, the {@code host} spans
+ * the file and command processing, the {@code proxy} spans the phases mixing both
+ * and the {@code action} spans the whole actions. When disabled, starting a span
+ * does not allocate anything.
+ *
+ * @author Lukas Zaoral
+ */
+public class TraceRecorder {
+
+    /**
+     * System property with the name of the trace file, the tracing is disabled if not set
+     */
+    public static final String TRACE_PROPERTY = "smpc.trace";
+
+    /**
+     * Maximal number of recorded spans, the later spans are dropped
+     */
+    private static final int MAX_EVENTS = 1000000;
+
+    private static final TraceRecorder INSTANCE = new TraceRecorder(System.getProperty(TRACE_PROPERTY));
+
+    /**
+     * The {@link Span} class represents a single running phase.
+     * It is recorded when closed.
+     * <p>
+     * The span is usually a resource of a try-with-resources statement never referenced
+     * in its body, so the methods starting the spans suppress the {@code try} lint warning.
+     */
+    public static class Span implements AutoCloseable {
+        private final TraceRecorder recorder;
+        private final String name;
+        private final String category;
+        private final long thread;
+        private final long start;
+        private String detail;
+        private long duration;
+
+        private Span(TraceRecorder recorder, String name, String category, String detail) {
+            this.recorder = recorder;
+            this.name = name;
+            this.category = category;
+            this.detail = detail;
+            this.thread = Thread.currentThread().getId();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Returns whether the span is recorded, so the details are worth computing.
+         *
+         * @return true if the span is recorded
+         */
+        public boolean isRecording() {
+            return recorder != null;
+        }
+
+        /**
+         * Sets the detail shown in the arguments of the span.
+         *
+         * @param detail detail of the span
+         */
+        public void setDetail(String detail) {
+            this.detail = detail;
+        }
+
+        /**
+         * Ends the span.
+         */
+        @Override
+        public void close() {
+            if (recorder == null)
+                return;
+
+            duration = System.nanoTime() - start;
+            recorder.record(this);
+        }
+    }
+
+    /**
+     * Span returned when the tracing is disabled
+     */
+    private static final Span DISABLED = new Span(null, null, null, null);
+
+    private final String fileName;
+    private final long origin = System.nanoTime();
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threads = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    private TraceRecorder(String fileName) {
+        this.fileName = fileName;
+        if (fileName == null)
+            return;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                write(fileName);
+            } catch (IOException e) {
+                System.err.println("Writing the trace failed: " + e.getMessage());
+            }
+        }, "trace-writer"));
+    }
+
+    /**
+     * Returns the recorder of the process.
+     *
+     * @return shared recorder
+     */
+    public static TraceRecorder getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns whether the spans are recorded.
+     *
+     * @return true if the tracing is enabled
+     */
+    public boolean isEnabled() {
+        return fileName != null;
+    }
+
+    /**
+     * Starts a span of the current thread.
+     *
+     * @param name     name of the phase
+     * @param category category of the phase
+     * @return running span to be closed at the end of the phase
+     */
+    public Span start(String name, String category) {
+        return start(name, category, null);
+    }
+
+    /**
+     * Starts a span of the current thread.
+     *
+     * @param name     name of the phase
+     * @param category category of the phase
+     * @param detail   detail shown in the arguments of the span or null
+     * @return running span to be closed at the end of the phase
+     */
+    public Span start(String name, String category, String detail) {
+        if (fileName == null)
+            return DISABLED;
+
+        return new Span(this, name, category, detail);
+    }
+
+    /**
+     * Records the finished {@code span}.
+     *
+     * @param span finished span
+     */
+    private void record(Span span) {
+        if (count.incrementAndGet() > MAX_EVENTS)
+            return;
+
+        if (!threads.containsKey(span.thread))
+            threads.putIfAbsent(span.thread, Thread.currentThread().getName());
+
+        spans.add(span);
+    }
+
+    /**
+     * Writes the recorded spans in the Chrome trace-event JSON format.
+     *
+     * @param fileName output file name
+     * @throws IOException if the file cannot be created or written to
+     */
+    public void write(String fileName) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName),
+                StandardCharsets.UTF_8))) {
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            out.write(String.format(Locale.ROOT,
+                    "%n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"smpc_rsa_proxy\"}}"));
+
+            for (Map.Entry<Long, String> t : threads.entrySet())
+                out.write(String.format(Locale.ROOT,
+                        ",%n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        t.getKey(), escape(t.getValue())));
+
+            for (Span s : spans) {
+                out.write(String.format(Locale.ROOT,
+                        ",%n{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d",
+                        escape(s.name), s.category, (s.start - origin) / 1000.0, s.duration / 1000.0, s.thread));
+
+                if (s.detail != null)
+                    out.write(String.format(",\"args\":{\"detail\":\"%s\"}", escape(s.detail)));
+
+                out.write('}');
+            }
+
+            out.write(String.format("%n]}%n"));
+        }
+
+        if (count.get() > MAX_EVENTS)
+            System.err.printf("The trace is incomplete, %d spans have been dropped.%n", count.get() - MAX_EVENTS);
+    }
+
+    /**
+     * Escapes the given {@code str} to be used in a JSON string.
+     *
+     * @param str string
+     * @return escaped string
+     */
+    private static String escape(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        for (char c : str.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,168 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+
+import javax.smartcardio.CardException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * The {@link AsyncProxy} class represents a single card used as a library.
+ * The operations are executed one by one on the worker thread of the card
+ * and their results are returned as {@link CompletableFuture}s, so they can be
+ * composed with other I/O without blocking the calling thread.
+ * <p>
+ * A failed operation completes its future exceptionally with the original
+ * {@link CardException}, {@link java.io.IOException} or {@link IllegalArgumentException}.
+ * <pre>
+ *     try (AsyncProxy&lt;ClientFullProxy&gt; card = AsyncProxy.connect(ClientFullProxy.APPLET_AID,
+ *             ClientFullProxy::new)) {
+ *         card.reset()
+ *                 .thenCompose(v -&gt; card.submit(p -&gt; p.signMessage(message)))
+ *                 .thenAccept(signature -&gt; ...);
+ *     }
+ * </pre>
+ *
+ * @param <P> type of the proxy
+ * @author Lukas Zaoral
+ */
+public class AsyncProxy<P extends AbstractProxy> implements AutoCloseable {
+
+    private final P proxy;
+    private final ExecutorService executor;
+
+    /**
+     * Wraps the given connected {@code proxy}.
+     *
+     * @param proxy connected proxy
+     */
+    public AsyncProxy(P proxy) {
+        this.proxy = proxy;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "card-" + proxy.getCardManager().getTerminalName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Connects to the last present card with the {@code appletAID} applet installed.
+     * The progress messages of the proxy are suppressed.
+     *
+     * @param appletAID hex string with the applet ID
+     * @param factory   creates a proxy of a connected card
+     * @param <P>       type of the proxy
+     * @return asynchronous proxy of the card
+     * @throws CardException if no card with the applet is present
+     */
+    public static <P extends AbstractProxy> AsyncProxy<P> connect(String appletAID, Function<CardManager, P> factory)
+            throws CardException {
+        CardManager manager = new CardManager(Util.hexStringToByteArray(appletAID));
+        if (!manager.connect())
+            throw new CardException(AbstractProxy.CONNECTION_ERROR);
+
+        P proxy = factory.apply(manager);
+        proxy.setQuiet(true);
+        return new AsyncProxy<>(proxy);
+    }
+
+    /**
+     * Returns the wrapped proxy. It must not be used directly while
+     * some operations are pending.
+     *
+     * @return proxy of the card
+     */
+    public P getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Submits the {@code task} to the worker thread of the card.
+     *
+     * @param task operation
+     * @param <T>  type of the result
+     * @return future result of the operation
+     */
+    public <T> CompletableFuture<T> submit(ProxyTask<? super P, T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                // cancelled before started
+                if (result.isDone())
+                    return;
+
+                try {
+                    result.complete(task.run(proxy));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new CardException("The card has been closed."));
+        }
+
+        return result;
+    }
+
+    /**
+     * Resets the applet.
+     *
+     * @return future completed after the reset
+     */
+    public CompletableFuture<Void> reset() {
+        return submit(p -> {
+            p.reset();
+            return null;
+        });
+    }
+
+    /**
+     * Generates or sets the keys using the key files, as the {@code generate} action does.
+     *
+     * @return future completed after the keys are generated
+     */
+    public CompletableFuture<Void> generateKeys() {
+        return submit(p -> {
+            p.generateKeys();
+            return null;
+        });
+    }
+
+    /**
+     * Disconnects from the card after all pending operations have finished.
+     *
+     * @return future completed after the card is disconnected
+     */
+    public CompletableFuture<Void> disconnect() {
+        CompletableFuture<Void> result = submit(p -> {
+            p.disconnect();
+            return null;
+        });
+
+        executor.shutdown();
+        return result;
+    }
+
+    /**
+     * Disconnects from the card after all pending operations have finished
+     * without waiting for them.
+     */
+    @Override
+    public void close() {
+        if (executor.isShutdown())
+            return;
+
+        disconnect().whenComplete((v, e) -> {
+            if (e != null)
+                System.err.println("Disconnecting failed: " + e.getMessage());
+        });
+    }
+
+}
@@ -0,0 +1,165 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.CardSlot;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportProvider;
+
+import javax.smartcardio.CardException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link CardMonitor} class watches the readers of a transport and keeps
+ * the pool in sync with them, so the cards can be inserted and removed while
+ * the pool is in use.
+ * <p>
+ * A newly inserted card is connected, the applet of the pool is selected and the card
+ * is added to the pool. Cards without the applet are ignored until removed.
+ * A removed card, or a card of a removed reader, is taken out of the pool, so no new
+ * operations are dispatched to it. Its pending operations fail with a transport error
+ * and the operations on the other cards are not affected.
+ *
+ * @param <P> type of the proxy
+ * @author Lukas Zaoral
+ */
+public class CardMonitor<P extends AbstractProxy> implements AutoCloseable {
+
+    /**
+     * System property enabling the monitor in the daemon mode,
+     * {@code on} (default) or {@code off}
+     */
+    public static final String HOT_PLUG_PROPERTY = "smpc.hotPlug";
+
+    /**
+     * Maximal time between two scans of the readers in milliseconds
+     */
+    private static final long SCAN_PERIOD_MILLIS = 2000;
+
+    private final CardPool<P> pool;
+    private final TransportProvider provider;
+    private final Map<String, P> cards = new HashMap<>();
+    private final Set<String> ignored = new HashSet<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a monitor of the readers of the given {@code provider} which adds
+     * the cards to the given {@code pool}.
+     *
+     * @param pool     pool created by {@link CardPool#connect(String, java.util.function.Function)}
+     * @param provider transport of the cards
+     */
+    public CardMonitor(CardPool<P> pool, TransportProvider provider) {
+        this.pool = pool;
+        this.provider = provider;
+        this.thread = new Thread(this::run, "card-monitor");
+        this.thread.setDaemon(true);
+
+        for (P p : pool.getProxies())
+            cards.put(p.getCardManager().getTerminalName(), p);
+    }
+
+    /**
+     * Starts watching the readers.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops watching the readers. The cards stay in the pool.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Waits for the changes of the readers and scans them.
+     */
+    private void run() {
+        while (running) {
+            try {
+                provider.waitForChange(SCAN_PERIOD_MILLIS);
+                scan();
+            } catch (CardException e) {
+                if (!running)
+                    return;
+
+                System.err.println("Reader monitoring failed: " + e.getMessage());
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * Adds the inserted cards to the pool and removes the pulled ones.
+     *
+     * @throws CardException if the readers cannot be listed
+     */
+    void scan() throws CardException {
+        List<CardSlot> slots = provider.list();
+        Set<String> present = new HashSet<>();
+
+        for (CardSlot s : slots) {
+            boolean cardPresent;
+            try {
+                cardPresent = s.isCardPresent();
+            } catch (CardException e) {
+                // the reader is being removed
+                continue;
+            }
+
+            if (!cardPresent)
+                continue;
+
+            String name = s.getName();
+            present.add(name);
+            if (cards.containsKey(name) || ignored.contains(name))
+                continue;
+
+            try {
+                P proxy = pool.add(s);
+                if (proxy == null) {
+                    ignored.add(name);
+                    continue;
+                }
+
+                // the progress of concurrent operations would be interleaved
+                proxy.setQuiet(true);
+                cards.put(name, proxy);
+                System.out.printf("Card added: %s (%d card(s))%n", name, pool.size());
+            } catch (CardException e) {
+                System.err.printf("Card '%s' cannot be connected: %s%n", name, e.getMessage());
+            }
+        }
+
+        ignored.retainAll(present);
+        cards.entrySet().removeIf(e -> {
+            if (present.contains(e.getKey()))
+                return false;
+
+            if (pool.remove(e.getValue()))
+                System.out.printf("Card removed: %s (%d card(s))%n", e.getKey(), pool.size());
+
+            return true;
+        });
+    }
+
+    /**
+     * Waits for the next scan after a failure.
+     */
+    private void sleep() {
+        try {
+            Thread.sleep(SCAN_PERIOD_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,345 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.CardSlot;
+
+import javax.smartcardio.CardException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The {@link CardPool} class represents a set of connected cards
+ * with the same applet. Each card has its own channel and worker thread.
+ * The submitted operations are dispatched to the card with the least
+ * pending operations.
+ *
+ * @param <P> type of the proxy
+ * @author Lukas Zaoral
+ */
+public class CardPool<P extends AbstractProxy> implements AutoCloseable {
+
+    /**
+     * The {@link CardWorker} class represents a single card of the pool
+     * with its own worker thread.
+     *
+     * @param <P> type of the proxy
+     */
+    static class CardWorker<P extends AbstractProxy> {
+        final AsyncProxy<P> card;
+        final AtomicInteger pending = new AtomicInteger();
+
+        CardWorker(P proxy) {
+            this.card = new AsyncProxy<>(proxy);
+        }
+
+        <T> CompletableFuture<T> submit(ProxyTask<? super P, T> task) {
+            pending.incrementAndGet();
+
+            // return the original future, so the cancelled operations are skipped
+            CompletableFuture<T> result = card.submit(task);
+            result.whenComplete((r, e) -> pending.decrementAndGet());
+            return result;
+        }
+
+        void close() {
+            card.close();
+        }
+    }
+
+    private final List<CardWorker<P>> workers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<? super P>> removeListeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final byte[] appletId;
+    private final Function<CardManager, P> factory;
+
+    /**
+     * Creates a pool of the given connected {@code proxies}.
+     *
+     * @param proxies connected proxies
+     */
+    public CardPool(List<P> proxies) {
+        this(proxies, null, null);
+    }
+
+    /**
+     * Creates a pool of the given connected {@code proxies} which can connect
+     * further cards with the {@code appletId} applet.
+     *
+     * @param proxies  connected proxies
+     * @param appletId applet ID or null
+     * @param factory  creates a proxy of a connected card or null
+     */
+    private CardPool(List<P> proxies, byte[] appletId, Function<CardManager, P> factory) {
+        this.appletId = appletId;
+        this.factory = factory;
+
+        for (P proxy : proxies)
+            workers.add(new CardWorker<>(proxy));
+    }
+
+    /**
+     * Connects to all present cards with the {@code appletAID} applet installed.
+     *
+     * @param appletAID hex string with the applet ID
+     * @param factory   creates a proxy of a connected card
+     * @param <P>       type of the proxy
+     * @return pool with all connected cards
+     * @throws CardException if no card with the applet is present
+     */
+    public static <P extends AbstractProxy> CardPool<P> connect(String appletAID, Function<CardManager, P> factory)
+            throws CardException {
+        byte[] appletId = Util.hexStringToByteArray(appletAID);
+
+        List<P> proxies = new ArrayList<>();
+        for (CardManager manager : CardManager.connectAll(appletId))
+            proxies.add(factory.apply(manager));
+
+        if (proxies.isEmpty())
+            throw new CardException(AbstractProxy.CONNECTION_ERROR);
+
+        return new CardPool<>(proxies, appletId, factory);
+    }
+
+    /**
+     * Connects to the card in the given {@code slot} and adds it to the pool
+     * if it has the applet of the pool installed.
+     *
+     * @param slot card reader
+     * @return proxy of the added card or null if the applet is not installed
+     * @throws CardException if the pool has not been created by {@link #connect(String, Function)}
+     *                       or the card cannot be connected
+     */
+    public P add(CardSlot slot) throws CardException {
+        if (factory == null)
+            throw new CardException("The pool cannot connect new cards.");
+
+        CardManager manager = new CardManager(appletId);
+        if (!manager.connect(slot))
+            return null;
+
+        P proxy = factory.apply(manager);
+        add(proxy);
+        return proxy;
+    }
+
+    /**
+     * Adds the given connected {@code proxy} to the pool.
+     *
+     * @param proxy connected proxy
+     */
+    public void add(P proxy) {
+        workers.add(new CardWorker<>(proxy));
+    }
+
+    /**
+     * Removes the card of the given {@code proxy} from the pool. No new operations
+     * are dispatched to the card, the pending ones are finished before disconnecting.
+     *
+     * @param proxy proxy of a card of the pool
+     * @return true if the card has been in the pool
+     */
+    public boolean remove(P proxy) {
+        for (CardWorker<P> w : workers) {
+            if (w.card.getProxy() == proxy && workers.remove(w)) {
+                w.close();
+                for (Consumer<? super P> listener : removeListeners)
+                    listener.accept(proxy);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Registers the {@code listener} called with the proxy of every card
+     * removed from the pool, e.g. to drop the data kept about the card.
+     *
+     * @param listener listener of the removed cards
+     */
+    public void addRemoveListener(Consumer<? super P> listener) {
+        removeListeners.add(listener);
+    }
+
+    /**
+     * Checks whether the card of the given {@code proxy} is in the pool.
+     *
+     * @param proxy proxy of a card
+     * @return true if the card is in the pool
+     */
+    public boolean contains(P proxy) {
+        for (CardWorker<P> w : workers) {
+            if (w.card.getProxy() == proxy)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the number of cards in the pool.
+     *
+     * @return number of cards
+     */
+    public int size() {
+        return workers.size();
+    }
+
+    /**
+     * Returns the proxies of all cards in the pool.
+     *
+     * @return list of proxies
+     */
+    public List<P> getProxies() {
+        List<P> proxies = new ArrayList<>();
+        for (CardWorker<P> w : workers)
+            proxies.add(w.card.getProxy());
+
+        return proxies;
+    }
+
+    /**
+     * Submits the {@code task} to the card with the least pending operations.
+     *
+     * @param task operation
+     * @param <T>  type of the result
+     * @return future result of the operation
+     * @throws CardException if the pool is empty
+     */
+    public <T> CompletableFuture<T> submit(ProxyTask<? super P, T> task) throws CardException {
+        return pick(p -> true).submit(task);
+    }
+
+    /**
+     * Submits the {@code task} to the card with the least pending operations
+     * among the cards accepted by {@code eligible}, e.g. the cards holding the same keys.
+     *
+     * @param eligible accepts the cards which may execute the operation
+     * @param task     operation
+     * @param <T>      type of the result
+     * @return future result of the operation
+     * @throws CardException if no card of the pool is eligible
+     */
+    public <T> CompletableFuture<T> submit(Predicate<? super P> eligible, ProxyTask<? super P, T> task)
+            throws CardException {
+        return pick(eligible).submit(task);
+    }
+
+    /**
+     * Submits the {@code task} to the card of the given {@code proxy}.
+     *
+     * @param proxy proxy of a card of the pool
+     * @param task  operation
+     * @param <T>   type of the result
+     * @return future result of the operation
+     * @throws CardException if the card is not in the pool
+     */
+    public <T> CompletableFuture<T> submit(P proxy, ProxyTask<? super P, T> task) throws CardException {
+        return find(proxy).submit(task);
+    }
+
+    /**
+     * Checks whether the card of the given {@code proxy} has no pending operations.
+     *
+     * @param proxy proxy of a card of the pool
+     * @return true if the card is idle
+     * @throws CardException if the card is not in the pool
+     */
+    public boolean isIdle(P proxy) throws CardException {
+        return getPending(proxy) == 0;
+    }
+
+    /**
+     * Returns the number of pending operations of the card of the given {@code proxy}.
+     *
+     * @param proxy proxy of a card of the pool
+     * @return number of pending operations
+     * @throws CardException if the card is not in the pool
+     */
+    public int getPending(P proxy) throws CardException {
+        return find(proxy).pending.get();
+    }
+
+    /**
+     * Submits the {@code task} to every card of the pool.
+     *
+     * @param task operation
+     * @param <T>  type of the result
+     * @return future results of the operation in the order of cards
+     */
+    public <T> List<CompletableFuture<T>> broadcast(ProxyTask<? super P, T> task) {
+        List<CompletableFuture<T>> results = new ArrayList<>();
+        for (CardWorker<P> w : workers)
+            results.add(w.submit(task));
+
+        return results;
+    }
+
+    /**
+     * Chooses the card with the least pending operations among the cards accepted
+     * by {@code eligible}. The ties are resolved in the round-robin fashion.
+     *
+     * @param eligible accepts the cards which may be chosen
+     * @return chosen card
+     * @throws CardException if no card of the pool is eligible
+     */
+    private CardWorker<P> pick(Predicate<? super P> eligible) throws CardException {
+        List<CardWorker<P>> snapshot = new ArrayList<>();
+        for (CardWorker<P> w : workers) {
+            if (eligible.test(w.card.getProxy()))
+                snapshot.add(w);
+        }
+
+        int size = snapshot.size();
+        if (size == 0)
+            throw new CardException("There is no card for the operation in the pool.");
+
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        CardWorker<P> best = null;
+        for (int i = 0; i < size; i++) {
+            CardWorker<P> w = snapshot.get((start + i) % size);
+            if (best == null || w.pending.get() < best.pending.get())
+                best = w;
+        }
+
+        return best;
+    }
+
+    /**
+     * Finds the worker of the given {@code proxy}.
+     *
+     * @param proxy proxy of a card of the pool
+     * @return worker of the card
+     * @throws CardException if the card is not in the pool
+     */
+    private CardWorker<P> find(P proxy) throws CardException {
+        for (CardWorker<P> w : workers) {
+            if (w.card.getProxy() == proxy)
+                return w;
+        }
+
+        throw new CardException("The card is not in the pool.");
+    }
+
+    /**
+     * Stops all workers and disconnects from all cards.
+     */
+    @Override
+    public void close() {
+        for (CardWorker<P> w : workers)
+            w.close();
+
+        workers.clear();
+    }
+
+}
@@ -0,0 +1,381 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.LatencyHistogram;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+import cz.muni.fi.crocs.smpc_rsa_proxy.transport.TransportException;
+
+import javax.smartcardio.CardException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * The {@link HedgedRouter} class routes the operations over the eligible cards
+ * of a pool, so the latency does not follow the slowest card. The eligible cards
+ * have to hold the same keys, otherwise a hedged or retried operation would be
+ * executed with another key. The other cards of the pool are never used.
+ * <p>
+ * Each operation is sent to the card with the lowest expected latency, estimated
+ * from the exponentially weighted moving average of its latencies and its pending
+ * operations. If the operation does not finish within the {@code HEDGE_QUANTILE}
+ * of the latencies observed so far, it is sent to a second card as well and the
+ * first result wins. If a card fails with a {@link TransportException}, it is
+ * reconnected in the background and the operation is retried on another card.
+ * Cards which cannot be reconnected are avoided for {@code DOWN_MILLIS}.
+ * <p>
+ * Only the operations which may be safely executed twice, e.g. signing,
+ * should be routed.
+ *
+ * @param <P> type of the proxy
+ * @author Lukas Zaoral
+ */
+public class HedgedRouter<P extends AbstractProxy> implements AutoCloseable {
+
+    /**
+     * Weight of the last latency in the moving average
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * Quantile of the latencies after which the operation is hedged
+     */
+    private static final double HEDGE_QUANTILE = 0.95;
+
+    /**
+     * Minimal number of latencies before the operations are hedged
+     */
+    private static final long MIN_SAMPLES = 20;
+
+    /**
+     * Maximal number of attempts of a single operation
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Time in milliseconds for which the card is avoided after a failed reconnect
+     */
+    private static final long DOWN_MILLIS = 5000;
+
+    /**
+     * The {@link CardStats} class represents the latency estimate and the health of a single card.
+     */
+    private static class CardStats {
+        private double ewma = 0;
+        private volatile long downUntil = 0;
+        private final AtomicBoolean reconnecting = new AtomicBoolean();
+
+        synchronized void record(long nanos) {
+            ewma = ewma == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * ewma;
+        }
+
+        synchronized double getEwma() {
+            return ewma;
+        }
+
+        boolean isDown() {
+            return System.currentTimeMillis() < downUntil;
+        }
+    }
+
+    /**
+     * The {@link Attempt} class represents a single attempt of an operation
+     * with the original and the hedged request.
+     *
+     * @param <T> type of the result
+     */
+    private static class Attempt<T> {
+        final int number;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final List<CompletableFuture<T>> requests = new CopyOnWriteArrayList<>();
+        volatile boolean finished = false;
+
+        Attempt(int number) {
+            this.number = number;
+        }
+    }
+
+    private final CardPool<P> pool;
+    private final Predicate<? super P> eligible;
+    private final Map<P, CardStats> stats = new ConcurrentHashMap<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder hedgedCount = new LongAdder();
+    private final LongAdder retriedCount = new LongAdder();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hedged-router");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates a router over the cards of the given {@code pool} accepted by {@code eligible}.
+     *
+     * @param pool     pool of the cards
+     * @param eligible accepts the cards holding the same keys
+     */
+    public HedgedRouter(CardPool<P> pool, Predicate<? super P> eligible) {
+        this.pool = pool;
+        this.eligible = eligible;
+
+        // the statistics of the removed cards are not needed anymore
+        pool.addRemoveListener(stats::remove);
+    }
+
+    /**
+     * Returns the number of hedged requests.
+     *
+     * @return number of hedged requests
+     */
+    public long getHedgedCount() {
+        return hedgedCount.sum();
+    }
+
+    /**
+     * Returns the number of operations retried after a transport error.
+     *
+     * @return number of retries
+     */
+    public long getRetriedCount() {
+        return retriedCount.sum();
+    }
+
+    /**
+     * Submits the {@code task} to the fastest card of the pool.
+     *
+     * @param task operation which may be executed more than once
+     * @param <T>  type of the result
+     * @return future result of the first successful execution
+     */
+    public <T> CompletableFuture<T> submit(ProxyTask<? super P, T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(task, result, 1, null);
+        return result;
+    }
+
+    /**
+     * Stops the hedging timer.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Sends the {@code task} to the fastest card other than {@code failed} and schedules
+     * the hedged request.
+     *
+     * @param task   operation
+     * @param result future result of the operation
+     * @param number number of the attempt
+     * @param failed card which failed in the previous attempt or null
+     * @param <T>    type of the result
+     */
+    private <T> void attempt(ProxyTask<? super P, T> task, CompletableFuture<T> result, int number, P failed) {
+        P first = pick(failed);
+        if (first == null) {
+            result.completeExceptionally(new CardException("There is no card for the operation in the pool."));
+            return;
+        }
+
+        Attempt<T> attempt = new Attempt<>(number);
+        send(first, task, result, attempt);
+
+        long threshold = hedgeThreshold();
+        if (threshold <= 0 || pool.size() < 2)
+            return;
+
+        try {
+            timer.schedule(() -> {
+                if (result.isDone() || attempt.finished)
+                    return;
+
+                P second = pick(first);
+                if (second == null || second == first)
+                    return;
+
+                hedgedCount.increment();
+                send(second, task, result, attempt);
+            }, threshold, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the router has been closed, do not hedge
+        }
+    }
+
+    /**
+     * Sends the {@code task} to the given {@code card} within the given {@code attempt}.
+     *
+     * @param card    proxy of the card
+     * @param task    operation
+     * @param result  future result of the operation
+     * @param attempt current attempt
+     * @param <T>     type of the result
+     */
+    private <T> void send(P card, ProxyTask<? super P, T> task, CompletableFuture<T> result, Attempt<T> attempt) {
+        attempt.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+
+        CompletableFuture<T> request;
+        try {
+            request = pool.submit(card, task);
+        } catch (CardException e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+
+        attempt.requests.add(request);
+        request.whenComplete((r, e) -> {
+            if (e == null) {
+                long elapsed = System.nanoTime() - start;
+                stats(card).record(elapsed);
+                latencies.record(elapsed);
+
+                // the slower request is not needed anymore
+                if (result.complete(r)) {
+                    for (CompletableFuture<T> other : attempt.requests)
+                        other.cancel(false);
+                }
+                return;
+            }
+
+            Throwable cause = unwrap(e);
+            if (cause instanceof TransportException)
+                reconnect(card);
+
+            // wait for the other request of the attempt
+            if (attempt.outstanding.decrementAndGet() > 0 || result.isDone())
+                return;
+
+            attempt.finished = true;
+            if (cause instanceof TransportException && attempt.number < MAX_ATTEMPTS) {
+                retriedCount.increment();
+                attempt(task, result, attempt.number + 1, card);
+                return;
+            }
+
+            result.completeExceptionally(cause);
+        });
+    }
+
+    /**
+     * Chooses the eligible card with the lowest expected latency. The cards which are down
+     * and the {@code excluded} card are chosen only if there is no other eligible card.
+     *
+     * @param excluded card to avoid or null
+     * @return chosen card or null if no card of the pool is eligible
+     */
+    private P pick(P excluded) {
+        List<P> proxies = pool.getProxies();
+        int size = proxies.size();
+        if (size == 0)
+            return null;
+
+        P best = null;
+        P fallback = null;
+        double bestScore = Double.MAX_VALUE;
+        int start = Math.floorMod(next.getAndIncrement(), size);
+
+        for (int i = 0; i < size; i++) {
+            P p = proxies.get((start + i) % size);
+            if (!eligible.test(p))
+                continue;
+
+            if (p == excluded || stats(p).isDown()) {
+                if (fallback == null || fallback == excluded)
+                    fallback = p;
+                continue;
+            }
+
+            double score;
+            try {
+                // the cards without any latency are tried first
+                score = (pool.getPending(p) + 1) * stats(p).getEwma();
+            } catch (CardException e) {
+                // removed from the pool meanwhile
+                continue;
+            }
+
+            if (best == null || score < bestScore) {
+                best = p;
+                bestScore = score;
+            }
+        }
+
+        return best != null ? best : fallback;
+    }
+
+    /**
+     * Returns the latency after which the operation is hedged.
+     *
+     * @return latency in nanoseconds or 0 if there are not enough latencies yet
+     */
+    private long hedgeThreshold() {
+        if (latencies.getCount() < MIN_SAMPLES)
+            return 0;
+
+        return latencies.getQuantile(HEDGE_QUANTILE);
+    }
+
+    /**
+     * Reconnects to the given {@code card} and selects the applet again
+     * unless already reconnecting. The card is avoided if the reconnect fails.
+     *
+     * @param card proxy of the card
+     */
+    private void reconnect(P card) {
+        CardStats s = stats(card);
+        if (!s.reconnecting.compareAndSet(false, true))
+            return;
+
+        CompletableFuture<Boolean> result;
+        try {
+            result = pool.submit(card, p -> p.getCardManager().reconnect());
+        } catch (CardException e) {
+            s.reconnecting.set(false);
+            return;
+        }
+
+        result.whenComplete((connected, e) -> {
+            if (e != null || !connected)
+                s.downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+
+            s.reconnecting.set(false);
+        });
+    }
+
+    /**
+     * Returns the statistics of the given {@code card}.
+     *
+     * @param card proxy of the card
+     * @return statistics of the card
+     */
+    private CardStats stats(P card) {
+        return stats.computeIfAbsent(card, c -> new CardStats());
+    }
+
+    /**
+     * Returns the original exception of the failed operation.
+     *
+     * @param e exception completing the future
+     * @return original exception
+     */
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+            e = e.getCause();
+
+        return e;
+    }
+
+}
@@ -0,0 +1,645 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.ClientFullProxy;
+
+import javax.smartcardio.CardException;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link KeyInventory} class keeps a stock of client-full keys generated
+ * in advance by the idle cards of the pool, so a request for a new key does not wait
+ * for the slow on-card key generation.
+ * <p>
+ * The private share of a key never leaves its card, so each card holds at most one key
+ * and a key is identified by its card. The stocked keys have their server share stored
+ * in the {@code [id].key} file of the inventory directory. A taken key is renamed to
+ * {@code [id].claimed} and its card signs only with that key until the key is released.
+ * The cards are looked up in the pool by their readers. Each card joining the pool,
+ * including the cards connected on start, is asked for its server share, which is compared
+ * with the stored key of its reader, so the stock survives restarts and the keys of a removed
+ * card are used again once the card is inserted. The key of a different card inserted into
+ * the reader is discarded. The key of a card which cannot be asked is kept out of service
+ * and the card is asked again later.
+ * <p>
+ * When the stock falls below the low watermark, the idle cards generate new keys until
+ * the stock reaches the high watermark. Keys with an unusable modulus are discarded
+ * and generated again.
+ *
+ * @author Lukas Zaoral
+ */
+public class KeyInventory implements AutoCloseable {
+
+    /**
+     * System property with the inventory directory enabling the inventory in the daemon mode
+     */
+    public static final String INVENTORY_PROPERTY = "smpc.inventory";
+
+    /**
+     * System property with the {@code low:high} watermarks of the stock,
+     * 1 and the number of cards by default
+     */
+    public static final String WATERMARKS_PROPERTY = "smpc.inventoryWatermarks";
+
+    private static final String KEY_SUFFIX = ".key";
+    private static final String CLAIMED_SUFFIX = ".claimed";
+
+    /**
+     * Period of the stock checks in milliseconds
+     */
+    private static final long REFILL_PERIOD_MILLIS = 1000;
+
+    /**
+     * Length of the partial modulus in bytes
+     */
+    private static final int PARTIAL_MODULUS_LENGTH = 256;
+
+    /**
+     * Product of the odd primes below 1000
+     */
+    private static final BigInteger SMALL_PRIMES = smallPrimes(1000);
+
+    /**
+     * The {@link Key} class represents the server share of a key held by a single card.
+     */
+    public static class Key {
+        private final String id;
+        private final byte[] d1Server;
+        private final byte[] n1;
+
+        Key(String id, byte[] d1Server, byte[] n1) {
+            this.id = id;
+            this.d1Server = d1Server;
+            this.n1 = n1;
+        }
+
+        /**
+         * Returns the ID of the key, which is derived from the name of its card reader.
+         *
+         * @return key ID
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the server private exponent share.
+         *
+         * @return byte array with the server private exponent share
+         */
+        public byte[] getD1Server() {
+            return d1Server.clone();
+        }
+
+        /**
+         * Returns the client partial modulus.
+         *
+         * @return byte array with the client partial modulus
+         */
+        public byte[] getN1() {
+            return n1.clone();
+        }
+    }
+
+    /**
+     * Enum representing the use of a card.
+     */
+    private enum Slot {
+        FREE,
+        GENERATING,
+        STOCKED,
+        CLAIMED
+    }
+
+    private final CardPool<ClientFullProxy> pool;
+    private final Path dir;
+    private final int low;
+    private final int high;
+
+    private final Map<String, Slot> slots = new LinkedHashMap<>();
+    private final Map<String, ClientFullProxy> cards = new HashMap<>();
+    private final Deque<Key> stock = new ArrayDeque<>();
+    private final AtomicInteger failedGenerate = new AtomicInteger();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "key-inventory");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean filling = false;
+
+    /**
+     * Creates an inventory of the cards of the given {@code pool}.
+     *
+     * @param pool pool of the client-full cards
+     * @param dir  directory with the stored keys
+     * @param low  number of stocked keys triggering the generation
+     * @param high number of stocked keys stopping the generation
+     */
+    public KeyInventory(CardPool<ClientFullProxy> pool, Path dir, int low, int high) {
+        if (low < 0 || high < 1 || low > high)
+            throw new IllegalArgumentException(String.format("Wrong watermarks %d:%d.", low, high));
+
+        this.pool = pool;
+        this.dir = dir;
+        this.low = low;
+        this.high = high;
+
+        pool.addRemoveListener(this::forget);
+    }
+
+    /**
+     * Creates an inventory of the given {@code pool} configured by the {@code INVENTORY_PROPERTY}
+     * and {@code WATERMARKS_PROPERTY} properties.
+     *
+     * @param pool pool of the client-full cards
+     * @return inventory or null if not enabled
+     */
+    public static KeyInventory fromProperties(CardPool<ClientFullProxy> pool) {
+        String dir = System.getProperty(INVENTORY_PROPERTY);
+        if (dir == null)
+            return null;
+
+        String watermarks = System.getProperty(WATERMARKS_PROPERTY, "1:" + pool.size());
+        String[] parts = watermarks.split(":");
+        try {
+            if (parts.length != 2)
+                throw new NumberFormatException();
+
+            return new KeyInventory(pool, Paths.get(dir), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Wrong watermarks '%s'.", watermarks));
+        }
+    }
+
+    /**
+     * Loads and verifies the stored keys and starts the background generation.
+     *
+     * @throws IOException          if the inventory directory cannot be created or read
+     * @throws InterruptedException if interrupted while verifying the keys
+     */
+    public void start() throws IOException, InterruptedException {
+        Files.createDirectories(dir);
+        verifyInserted();
+
+        scheduler.scheduleWithFixedDelay(this::refill, 0, REFILL_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of stocked keys.
+     *
+     * @return number of stocked keys
+     */
+    public synchronized int getStock() {
+        return stock.size();
+    }
+
+    /**
+     * Returns the number of generated keys discarded because of an unusable modulus.
+     *
+     * @return number of discarded keys
+     */
+    public int getFailedGenerate() {
+        return failedGenerate.get();
+    }
+
+    /**
+     * Takes a key from the stock. If the stock is empty, the key is generated
+     * by a free card.
+     *
+     * @return future taken key
+     */
+    public CompletableFuture<Key> take() {
+        String id = null;
+
+        synchronized (this) {
+            for (Key key : stock) {
+                // the card has been removed or not verified yet, keep the key for later
+                if (!isConnected(key.id))
+                    continue;
+
+                stock.remove(key);
+                scheduler.execute(this::refill);
+                return claim(key);
+            }
+
+            for (Map.Entry<String, Slot> e : slots.entrySet()) {
+                if (e.getValue() == Slot.FREE && isConnected(e.getKey())) {
+                    id = e.getKey();
+                    e.setValue(Slot.GENERATING);
+                    break;
+                }
+            }
+        }
+
+        if (id == null) {
+            CompletableFuture<Key> result = new CompletableFuture<>();
+            result.completeExceptionally(new CardException("There is no free card for a new key."));
+            return result;
+        }
+
+        return generate(id).thenCompose(this::claim);
+    }
+
+    /**
+     * Signs the given {@code message} with the taken key with given {@code id}.
+     *
+     * @param id      key ID
+     * @param message byte array with the message
+     * @return future client signature share
+     */
+    public CompletableFuture<byte[]> sign(String id, byte[] message) {
+        try {
+            return pool.submit(claimedCard(id), p -> p.signMessage(message));
+        } catch (CardException e) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    /**
+     * Releases the taken key with given {@code id}. Its card is reused for a new key.
+     *
+     * @param id key ID
+     * @throws CardException if no such key is taken
+     * @throws IOException   if the key file cannot be deleted
+     */
+    public void release(String id) throws CardException, IOException {
+        synchronized (this) {
+            claimedCard(id);
+            Files.deleteIfExists(dir.resolve(id + CLAIMED_SUFFIX));
+            slots.put(id, Slot.FREE);
+        }
+
+        scheduler.execute(this::refill);
+    }
+
+    /**
+     * Stops the background generation. The keys being generated are finished.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Returns the card holding the taken key with given {@code id}.
+     *
+     * @param id key ID
+     * @return proxy of the card
+     * @throws CardException if no such key is taken
+     */
+    private synchronized ClientFullProxy claimedCard(String id) throws CardException {
+        if (slots.get(id) != Slot.CLAIMED)
+            throw new CardException(String.format("The key '%s' has not been taken.", id));
+
+        return card(id);
+    }
+
+    /**
+     * Returns the verified card with given {@code id} currently connected to the pool.
+     * The card may have been removed and inserted again.
+     *
+     * @param id card ID
+     * @return proxy of the card
+     * @throws CardException if the card is not connected or has not been verified yet
+     */
+    private synchronized ClientFullProxy card(String id) throws CardException {
+        ClientFullProxy card = cards.get(id);
+        if (card != null)
+            return card;
+
+        throw new CardException(String.format("The card of the key '%s' is not connected.", id));
+    }
+
+    /**
+     * Checks whether the card with given {@code id} is connected to the pool.
+     *
+     * @param id card ID
+     * @return true if the card is connected
+     */
+    private boolean isConnected(String id) {
+        try {
+            card(id);
+            return true;
+        } catch (CardException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the ID of the card of the given {@code proxy} derived from the name of its reader.
+     *
+     * @param proxy proxy of the card
+     * @return card ID
+     */
+    private static String id(ClientFullProxy proxy) {
+        return proxy.getCardManager().getTerminalName().replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Forgets the given removed {@code card}. Its slot is kept for the card inserted again.
+     *
+     * @param card proxy of the removed card
+     */
+    private synchronized void forget(ClientFullProxy card) {
+        cards.values().remove(card);
+    }
+
+    /**
+     * Verifies the cards which have joined the pool since the last call. A card is used only after
+     * it has proven to hold the stored key of its reader. The key of a card holding another key
+     * is discarded and the card is freed. A card which cannot be asked, or whose key file cannot
+     * be read, stays out of service and is verified again by the next call.
+     *
+     * @throws InterruptedException if interrupted while waiting for a card
+     */
+    private void verifyInserted() throws InterruptedException {
+        for (ClientFullProxy p : pool.getProxies()) {
+            String id = id(p);
+            Slot slot;
+
+            synchronized (this) {
+                if (cards.get(id) == p)
+                    continue;
+
+                slot = slots.get(id);
+                if (slot == null) {
+                    slot = stored(id);
+                    slots.put(id, slot);
+                }
+
+                // the previous card of the reader is still generating
+                if (slot == Slot.GENERATING)
+                    continue;
+
+                // the card is reset before the generation, it does not matter which keys it holds
+                if (slot == Slot.FREE) {
+                    cards.put(id, p);
+                    continue;
+                }
+            }
+
+            Path file = dir.resolve(id + (slot == Slot.CLAIMED ? CLAIMED_SUFFIX : KEY_SUFFIX));
+            Key key;
+            boolean holds;
+            try {
+                key = read(id, file);
+                byte[][] share = pool.submit(p, ClientFullProxy::getServerShare).get();
+                holds = Arrays.equals(share[0], key.d1Server) && Arrays.equals(share[1], key.n1);
+            } catch (CardException | ExecutionException | IOException e) {
+                // keep the key, the card is asked again later
+                continue;
+            }
+
+            synchronized (this) {
+                // the slot has changed or the card has been removed meanwhile
+                if (slots.get(id) != slot || !pool.contains(p))
+                    continue;
+
+                cards.put(id, p);
+                if (holds) {
+                    if (slot == Slot.STOCKED && stock.stream().noneMatch(k -> k.id.equals(id)))
+                        stock.add(key);
+
+                    continue;
+                }
+
+                stock.removeIf(k -> k.id.equals(id));
+                slots.put(id, Slot.FREE);
+            }
+
+            System.err.printf("The card in %s does not hold the key '%s', the key is discarded.%n",
+                    p.getCardManager().getTerminalName(), id);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Key file deletion failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the use of the card with given {@code id} according to the stored key files.
+     *
+     * @param id card ID
+     * @return use of the card
+     */
+    private Slot stored(String id) {
+        if (Files.exists(dir.resolve(id + CLAIMED_SUFFIX)))
+            return Slot.CLAIMED;
+
+        if (Files.exists(dir.resolve(id + KEY_SUFFIX)))
+            return Slot.STOCKED;
+
+        return Slot.FREE;
+    }
+
+    /**
+     * Verifies the inserted cards and starts the generation on the idle free cards
+     * if the stock is low.
+     */
+    private void refill() {
+        try {
+            verifyInserted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        List<String> started = new ArrayList<>();
+
+        synchronized (this) {
+            int count = stock.size() + (int) slots.values().stream().filter(s -> s == Slot.GENERATING).count();
+            if (count < low)
+                filling = true;
+
+            if (stock.size() >= high)
+                filling = false;
+
+            if (!filling)
+                return;
+
+            for (Map.Entry<String, Slot> e : slots.entrySet()) {
+                if (count >= high)
+                    break;
+
+                try {
+                    if (e.getValue() != Slot.FREE || !pool.isIdle(card(e.getKey())))
+                        continue;
+                } catch (CardException ex) {
+                    continue;
+                }
+
+                e.setValue(Slot.GENERATING);
+                started.add(e.getKey());
+                count++;
+            }
+        }
+
+        for (String id : started) {
+            generate(id).whenComplete((key, ex) -> {
+                if (key == null)
+                    return;
+
+                synchronized (this) {
+                    slots.put(id, Slot.STOCKED);
+                    stock.add(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Generates and stores a new key on the card with given {@code id}.
+     * The card is freed again if the generation fails.
+     *
+     * @param id card ID
+     * @return future generated key
+     */
+    private CompletableFuture<Key> generate(String id) {
+        CompletableFuture<Key> result;
+        try {
+            result = pool.submit(card(id), p -> {
+                p.reset();
+                byte[][] share = p.generateServerShare();
+                if (!isUsable(share[1])) {
+                    failedGenerate.incrementAndGet();
+                    p.reset();
+                    throw new CardException("The card has generated an unusable modulus.");
+                }
+
+                Key key = new Key(id, share[0], share[1]);
+                write(dir.resolve(id + KEY_SUFFIX), key);
+                return key;
+            });
+        } catch (CardException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+
+        return result.whenComplete((key, ex) -> {
+            if (ex == null)
+                return;
+
+            synchronized (this) {
+                slots.put(id, Slot.FREE);
+            }
+            System.err.println("Key generation failed: " + ex.getMessage());
+        });
+    }
+
+    /**
+     * Marks the given stocked or generated {@code key} as taken.
+     *
+     * @param key key
+     * @return future taken key
+     */
+    private CompletableFuture<Key> claim(Key key) {
+        CompletableFuture<Key> result = new CompletableFuture<>();
+
+        synchronized (this) {
+            try {
+                Files.move(dir.resolve(key.id + KEY_SUFFIX), dir.resolve(key.id + CLAIMED_SUFFIX),
+                        StandardCopyOption.REPLACE_EXISTING);
+                slots.put(key.id, Slot.CLAIMED);
+                result.complete(key);
+            } catch (IOException e) {
+                // keep the key on the card, it can be verified after restart
+                slots.put(key.id, Slot.STOCKED);
+                stock.addFirst(key);
+                result.completeExceptionally(e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the key stored in the given {@code file}.
+     *
+     * @param id   card ID
+     * @param file key file
+     * @return stored key
+     * @throws IOException if the file cannot be read or has a wrong format
+     */
+    private static Key read(String id, Path file) throws IOException {
+        DataFile data = DataFile.read(file.toString(), 2);
+        return new Key(id, data.get(0), data.get(1));
+    }
+
+    /**
+     * Stores the server share of the given {@code key} in the {@code file} file
+     * in the format selected by the {@code DataFile.FORMAT_PROPERTY} property.
+     *
+     * @param file key file
+     * @param key  key
+     * @throws IOException if the file cannot be created or written to
+     */
+    private static void write(Path file, Key key) throws IOException {
+        // the file appears complete or not at all
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        if (DataFile.isBinary())
+            DataFile.writeBinary(tmp.toString(), 8 * PARTIAL_MODULUS_LENGTH, key.d1Server, key.n1);
+        else
+            DataFile.writeHex(tmp.toString(), Util.toHexTrimmed(key.d1Server), Util.toHexTrimmed(key.n1));
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks the generated partial modulus {@code n1}. The modulus has to be a full-length
+     * odd composite number without small factors.
+     *
+     * @param n1 byte array with the partial modulus
+     * @return true if the modulus can be used
+     */
+    static boolean isUsable(byte[] n1) {
+        if (n1.length != PARTIAL_MODULUS_LENGTH)
+            return false;
+
+        BigInteger n = new BigInteger(1, n1);
+        return n.bitLength() == 8 * PARTIAL_MODULUS_LENGTH && n.testBit(0)
+                && n.gcd(SMALL_PRIMES).equals(BigInteger.ONE) && !n.isProbablePrime(20);
+    }
+
+    /**
+     * Computes the product of the odd primes below {@code bound}.
+     *
+     * @param bound upper bound
+     * @return product of the primes
+     */
+    private static BigInteger smallPrimes(int bound) {
+        BigInteger product = BigInteger.ONE;
+        for (int i = 3; i < bound; i += 2) {
+            if (BigInteger.valueOf(i).isProbablePrime(20))
+                product = product.multiply(BigInteger.valueOf(i));
+        }
+
+        return product;
+    }
+
+}
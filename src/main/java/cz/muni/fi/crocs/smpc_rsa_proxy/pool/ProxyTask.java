@@ -0,0 +1,30 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.pool;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.proxies.AbstractProxy;
+
+import javax.smartcardio.CardException;
+
+import java.io.IOException;
+
+/**
+ * The {@link ProxyTask} interface represents an operation
+ * executed with a proxy of a single card.
+ *
+ * @param <P> type of the proxy
+ * @param <T> type of the result
+ * @author Lukas Zaoral
+ */
+@FunctionalInterface
+public interface ProxyTask<P extends AbstractProxy, T> {
+
+    /**
+     * Executes the operation.
+     *
+     * @param proxy proxy of the card
+     * @return result of the operation
+     * @throws IOException   if some of the files cannot be read or written to
+     * @throws CardException if something on the smart card fails
+     */
+    T run(P proxy) throws IOException, CardException;
+
+}
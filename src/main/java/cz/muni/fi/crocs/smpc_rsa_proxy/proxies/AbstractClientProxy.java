@@ -1,6 +1,10 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
 
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardState;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.MessageEncoder;
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.TraceRecorder;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
@@ -13,7 +17,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -35,40 +38,142 @@ public abstract class AbstractClientProxy extends AbstractProxy {
     }
 
     /**
-     * Signs the the given message.
+     * Uses the given {@code cardMgr} card manager which has already
+     * selected the client applet.
      *
-     * @param cla           class byte
-     * @param insSetMessage set message instruction byte
-     * @param insSignature  sign instruction byte
+     * @param cardMgr connected card manager
+     */
+    AbstractClientProxy(CardManager cardMgr) {
+        super(cardMgr);
+    }
+
+    @Override
+    public void signMessage() throws CardException, IOException {
+        String message = clientLoadMessage();
+        byte[] bytes = Util.hexStringToByteArray(message);
+        byte[] signature = signMessage(bytes);
+        clientSaveSignature(signature, bytes, message);
+    }
+
+    /**
+     * Hashes the {@code fileName} document, encodes the hash by the encoding
+     * selected by {@link MessageEncoder#fromProperties(int)}, signs the encoded message
+     * and saves the client signature share as {@link #signMessage()} does.
+     *
+     * @param fileName file name of the document or {@code -} for the standard input
+     * @throws IOException   if the document cannot be read or the signature written
      * @throws CardException if something on the smart card fails
-     * @throws IOException   if the file with message is missing or cannot be read
-     *                       or the file with client signature cannot be created or written to
      */
-    protected void clientSignMessage(byte cla, byte insSetMessage, byte insSignature)
-            throws CardException, IOException {
+    public void signDocument(String fileName) throws CardException, IOException {
+        byte[] message = clientEncodeDocument(fileName);
+        byte[] signature = signMessage(message);
+        clientSaveSignature(signature, message, Util.toHex(message));
+    }
 
-        String message = clientSetMessage(cla, insSetMessage);
+    /**
+     * Creates the encoder of the documents selected by {@link MessageEncoder#fromProperties(int)}
+     * for the messages accepted by the applet. The encoded messages are as long as the client
+     * partial modulus, so the signatures have to be verified by the same encoder.
+     *
+     * @return encoder of the documents
+     * @throws IllegalArgumentException if the encoding properties have wrong values
+     */
+    public static MessageEncoder createMessageEncoder() {
+        return MessageEncoder.fromProperties(PARTIAL_MODULUS_LENGTH);
+    }
+
+    /**
+     * Signs the given {@code message} and returns the client signature share.
+     *
+     * @param message byte array with the message
+     * @return byte array with the client signature share
+     * @throws CardException if something on the smart card fails
+     */
+    public byte[] signMessage(byte[] message) throws CardException {
+        return signPrepared(prepareMessage(message));
+    }
+
+    /**
+     * Builds the list of commands to set the given {@code message}.
+     * Does not communicate with the card.
+     *
+     * @param message byte array with the message
+     * @return list of commands to set the message
+     */
+    public abstract List<CommandAPDU> prepareMessage(byte[] message);
+
+    /**
+     * Sets the message using the {@code cmdMessage} commands built by {@link #prepareMessage(byte[])}
+     * and returns the client signature share.
+     *
+     * @param cmdMessage list of commands to set the message
+     * @return byte array with the client signature share
+     * @throws CardException if something on the smart card fails
+     */
+    public abstract byte[] signPrepared(List<CommandAPDU> cmdMessage) throws CardException;
+
+    /**
+     * Builds the list of commands to set the given {@code message}.
+     *
+     * @param cla     class byte
+     * @param ins     set message instruction byte
+     * @param message byte array with the message
+     * @return list of commands to set the message
+     */
+    protected List<CommandAPDU> clientPrepareMessage(byte cla, byte ins, byte[] message) {
+        if (message.length > PARTIAL_MODULUS_LENGTH)
+            throw new IllegalArgumentException("Message cannot be larger than the modulus.");
+
+        return splitArrayToCmd(message, cla, ins, NONE);
+    }
+
+    /**
+     * Sets the message using the {@code cmdMessage} commands and returns the client signature share.
+     *
+     * @param cla          class byte
+     * @param insSignature sign instruction byte
+     * @param cmdMessage   list of commands to set the message
+     * @return byte array with the client signature share
+     * @throws CardException if something on the smart card fails
+     */
+    protected byte[] clientSignPrepared(byte cla, byte insSignature, List<CommandAPDU> cmdMessage)
+            throws CardException {
+
+        String fingerprint = CardState.fingerprint(cmdMessage);
+        boolean skipped = getState().isMessageSet(fingerprint);
+        if (!skipped)
+            transmitMessage(cmdMessage, fingerprint);
 
         printAndFlush("Signing...");
-        ResponseAPDU respSign = transmit(new CommandAPDU(cla, insSignature, NONE, NONE, PARTIAL_MODULUS_LENGTH), "Sign");
+        CommandAPDU cmdSign = new CommandAPDU(cla, insSignature, NONE, NONE, PARTIAL_MODULUS_LENGTH);
+        ResponseAPDU respSign = transmit(cmdSign, "Sign", SW_CONDITIONS_NOT_SATISFIED);
+
+        // the card state differs from the model, upload the message again
+        if (respSign.getSW() == SW_CONDITIONS_NOT_SATISFIED) {
+            getState().invalidate();
+            if (!skipped)
+                throw new CardException(String.format("Sign SW: %02X", respSign.getSW()));
+
+            printAndFlush(" \u001B[1;33mRETRY\u001B[0m%n");
+            transmitMessage(cmdMessage, fingerprint);
+            printAndFlush("Signing...");
+            respSign = transmit(cmdSign, "Sign");
+        }
+
         printOK();
 
-        clientSaveSignature(respSign, message);
+        return respSign.getData();
     }
 
     /**
-     * Loads the message from the {@code MESSAGE_FILE} file and transmits it to the smart card.
+     * Loads the message from the {@code MESSAGE_FILE} file.
      *
-     * @param cla class byte
-     * @param ins instruction byte
      * @return hex string with the message
-     * @throws CardException if something on the smart card fails
-     * @throws IOException   if the file with message is missing or cannot be read
+     * @throws IOException if the file with message is missing or cannot be read
      */
-    private String clientSetMessage(byte cla, byte ins) throws CardException, IOException {
+    private String clientLoadMessage() throws IOException {
         printAndFlush("Loading message...");
 
-        List<CommandAPDU> cmdMessage = new ArrayList<>();
         String message;
 
         try (InputStream in = new FileInputStream(MESSAGE_FILE)) {
@@ -80,8 +185,6 @@ public abstract class AbstractClientProxy extends AbstractProxy {
             if (num.length > PARTIAL_MODULUS_LENGTH)
                 throw new IOException("Message key cannot be larger than modulus.");
 
-            cmdMessage.addAll(splitArrayToCmd(num, cla, ins, NONE));
-
             if (reader.readLine() != null)
                 throw new IOException(String.format("Wrong '%s' file format.", MESSAGE_FILE));
         } catch (FileNotFoundException e) {
@@ -90,36 +193,70 @@ public abstract class AbstractClientProxy extends AbstractProxy {
         }
 
         printOK();
+        return message;
+    }
+
+    /**
+     * Hashes the {@code fileName} document and encodes the hash into the message.
+     *
+     * @param fileName file name of the document or {@code -} for the standard input
+     * @return byte array with the message
+     * @throws IOException if the document is missing or cannot be read
+     */
+    @SuppressWarnings("try")
+    private byte[] clientEncodeDocument(String fileName) throws IOException {
+        printAndFlush("Hashing document...");
 
-        transmitMessage(cmdMessage);
+        byte[] message;
+        try (TraceRecorder.Span span = TRACE.start("encodeDocument", "host", fileName)) {
+            message = createMessageEncoder().encodeFile(fileName);
+        } catch (FileNotFoundException e) {
+            System.err.println("The document file is missing.");
+            throw e;
+        }
+
+        printOK();
+        printAndFlush(String.format("\u001B[1;33mThe hash is encoded into %d bytes instead of the public modulus " +
+                "length,%nstandard verifiers reject the final signature, use the 'verify' command.\u001B[0m%n",
+                PARTIAL_MODULUS_LENGTH));
         return message;
     }
 
     /**
      * Transmits the message to the smart card.
      *
-     * @param cmdMessage list of commands to set the message
+     * @param cmdMessage  list of commands to set the message
+     * @param fingerprint fingerprint of the message commands
      * @throws CardException if something on the smart card fails
      */
-    private void transmitMessage(List<CommandAPDU> cmdMessage) throws CardException {
+    private void transmitMessage(List<CommandAPDU> cmdMessage, String fingerprint) throws CardException {
         printAndFlush("Transmitting message...");
+        if (getState().getKeys() == CardState.Keys.ABSENT)
+            throw new CardException("The client keys have not been set/exported yet!");
+
         int res = transmitBatch(cmdMessage, "Set message", SW_CONDITIONS_NOT_SATISFIED).get(0).getSW();
-        if (res == SW_CONDITIONS_NOT_SATISFIED)
+        if (res == SW_CONDITIONS_NOT_SATISFIED) {
+            getState().invalidate();
             throw new CardException("The client keys have not been set/exported yet!");
+        }
 
+        getState().setMessage(fingerprint);
+        getState().confirmKeys();
         printOK();
     }
 
     /**
      * Saves the client signature share to the {@code CLIENT_SIG_SHARE_FILE} file.
      *
-     * @param respSign Response APDU with client signature
-     * @param message  hex string with the message
+     * @param signature   byte array with client signature
+     * @param message     byte array with the message
+     * @param messageLine hex string with the message
      * @throws IOException if the signature file cannot be created or written to
      */
-    private void clientSaveSignature(ResponseAPDU respSign, String message) throws IOException {
+    private void clientSaveSignature(byte[] signature, byte[] message, String messageLine) throws IOException {
         printAndFlush("Storing signature...");
-        storeData(CLIENT_SIG_SHARE_FILE, message, Util.toHexTrimmed(respSign.getData()));
+        storeData(CLIENT_SIG_SHARE_FILE, 8 * PARTIAL_MODULUS_LENGTH, message, messageLine, signature,
+                Util.toHexTrimmed(signature));
         printOK();
     }
 }
@@ -1,24 +1,22 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
 
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardState;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+import cz.muni.fi.crocs.smpc_rsa_proxy.metrics.TraceRecorder;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 
 import java.math.BigInteger;
 
+import java.nio.file.attribute.BasicFileAttributes;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -47,6 +45,9 @@ public abstract class AbstractProxy {
     protected static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
     protected static final int SW_COMMAND_NOT_ALLOWED = 0x6986;
     protected static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
 
     /**
      * P2 parameters of received keys and messages
@@ -65,12 +66,33 @@ public abstract class AbstractProxy {
     protected static final short PARTIAL_MODULUS_LENGTH = 256;
     protected static final byte[] E = new byte[]{0x01, 0x00, 0x01};
     private static final short MAX_CMD_APDU_LENGTH = 255;
+    private static final int MAX_EXTENDED_CMD_APDU_LENGTH = 65535;
+
+    /**
+     * Message of the failed connection
+     */
+    public static final String CONNECTION_ERROR =
+            "Make sure that the card reader and card are connected and that the correct applet is installed.\n\n" +
+            "Linux users beware: The path to 'libpcsclite.so' smart card library is hardcoded in the JDK.\n" +
+            "Some distributions (e.g. Ubuntu) use a different path. Try running the application\n" +
+            "with '-Dsun.security.smartcardio.library={path_to_libpcsclite}' flag\n" +
+            "or set the variable 'JAVA_TOOL_OPTIONS' to this value";
+
+    /**
+     * Recorder of the phase spans
+     */
+    protected static final TraceRecorder TRACE = TraceRecorder.getInstance();
 
     /**
      * Card manager
      */
     private final CardManager cardMgr;
 
+    /**
+     * Whether the progress messages are suppressed
+     */
+    private boolean quiet = false;
+
     /**
      * Connects to a card a selects applet with {@code appletID} ID.
      *
@@ -83,15 +105,21 @@ public abstract class AbstractProxy {
 
         printAndFlush("Connecting to card...");
         if (!cardMgr.connect())
-            throw new CardException("Make sure that the card reader and card are connected and that the correct applet is installed.\n\n" +
-                    "Linux users beware: The path to 'libpcsclite.so' smart card library is hardcoded in the JDK.\n" +
-                    "Some distributions (e.g. Ubuntu) use a different path. Try running the application\n" +
-                    "with '-Dsun.security.smartcardio.library={path_to_libpcsclite}' flag\n" +
-                    "or set the variable 'JAVA_TOOL_OPTIONS' to this value");
+            throw new CardException(CONNECTION_ERROR);
 
         printOK();
     }
 
+    /**
+     * Uses the given {@code cardMgr} card manager which has already
+     * selected the applet.
+     *
+     * @param cardMgr connected card manager
+     */
+    AbstractProxy(CardManager cardMgr) {
+        this.cardMgr = cardMgr;
+    }
+
     /**
      * Disconnects from the given smart card.
      *
@@ -101,6 +129,33 @@ public abstract class AbstractProxy {
         cardMgr.disconnect();
     }
 
+    /**
+     * Returns the card manager of this proxy.
+     *
+     * @return card manager
+     */
+    public CardManager getCardManager() {
+        return cardMgr;
+    }
+
+    /**
+     * Returns the host-side model of the applet state.
+     *
+     * @return card state
+     */
+    protected CardState getState() {
+        return cardMgr.getState();
+    }
+
+    /**
+     * Suppresses or enables the progress messages printed to the standard output.
+     *
+     * @param quiet true if the progress messages should be suppressed
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
     /**
      * Generates/Loads the RSA keys of a given party.
      *
@@ -133,13 +188,20 @@ public abstract class AbstractProxy {
      */
     protected void resetHelper(byte cla, byte ins) throws CardException {
         printAndFlush("Resetting...");
-        transmit(new CommandAPDU(cla, ins, NONE, NONE), "Reset");
+
+        // nothing to reset
+        if (!getState().isEmpty()) {
+            transmit(new CommandAPDU(cla, ins, NONE, NONE), "Reset");
+            getState().reset();
+        }
+
         printOK();
     }
 
     /**
      * Generates a list of commands to transfer the {@code num} byte array by segments
-     * if necessary.
+     * if necessary. If the card accepts the extended length APDUs, the array
+     * is transferred in a single command.
      *
      * @param num byte array
      * @param cla class byte
@@ -147,19 +209,23 @@ public abstract class AbstractProxy {
      * @param p1  first parameter byte
      * @return list of commands to transfer the given byte array
      */
+    @SuppressWarnings("try")
     protected List<CommandAPDU> splitArrayToCmd(byte[] num, byte cla, byte ins, byte p1) {
         List<CommandAPDU> cmds = new ArrayList<>();
 
-        if (num.length <= MAX_CMD_APDU_LENGTH) {
-            cmds.add(new CommandAPDU(cla, ins, p1, P2_PART_0 | P2_SINGLE, num));
-            return cmds;
-        }
-
-        for (int i = num.length; i > 0; i -= MAX_CMD_APDU_LENGTH) {
-            cmds.add(new CommandAPDU(
-                    cla, ins, p1, (num.length / MAX_CMD_APDU_LENGTH - i / MAX_CMD_APDU_LENGTH) | P2_DIVIDED,
-                    Arrays.copyOfRange(num, i - MAX_CMD_APDU_LENGTH > 0 ? i - MAX_CMD_APDU_LENGTH : 0, i)
-            ));
+        try (TraceRecorder.Span span = TRACE.start("splitArrayToCmd", "host")) {
+            if (num.length <= MAX_CMD_APDU_LENGTH
+                    || (cardMgr.isExtendedLength() && num.length <= MAX_EXTENDED_CMD_APDU_LENGTH)) {
+                cmds.add(new CommandAPDU(cla, ins, p1, P2_PART_0 | P2_SINGLE, num));
+                return cmds;
+            }
+
+            for (int i = num.length; i > 0; i -= MAX_CMD_APDU_LENGTH) {
+                cmds.add(new CommandAPDU(
+                        cla, ins, p1, (num.length / MAX_CMD_APDU_LENGTH - i / MAX_CMD_APDU_LENGTH) | P2_DIVIDED,
+                        Arrays.copyOfRange(num, i - MAX_CMD_APDU_LENGTH > 0 ? i - MAX_CMD_APDU_LENGTH : 0, i)
+                ));
+            }
         }
 
         return cmds;
@@ -179,8 +245,46 @@ public abstract class AbstractProxy {
     protected ResponseAPDU transmit(CommandAPDU cmd, String name, int skipSW) throws CardException {
         ResponseAPDU res = cardMgr.transmit(cmd);
 
-        if (res.getSW() != SW_NO_ERROR && res.getSW() != skipSW)
+        // another application has selected a different applet, select ours and retry
+        if ((res.getSW() == SW_INS_NOT_SUPPORTED || res.getSW() == SW_CLA_NOT_SUPPORTED)
+                && res.getSW() != skipSW) {
+            getState().deselect();
+            if (cardMgr.select())
+                res = cardMgr.transmit(cmd);
+        }
+
+        // the applet does not accept extended length APDUs, send the data by segments
+        if (res.getSW() == SW_WRONG_LENGTH && cmd.getNc() > MAX_CMD_APDU_LENGTH) {
+            cardMgr.setExtendedLength(false);
+            res = transmitSegmented(cmd, name, skipSW);
+        }
+
+        if (res.getSW() != SW_NO_ERROR && res.getSW() != skipSW) {
+            getState().invalidate();
             throw new CardException(String.format("%s SW: %02X", name, res.getSW()));
+        }
+
+        return res;
+    }
+
+    /**
+     * Transmit the data of the {@code cmd} extended length Command APDU by segments.
+     *
+     * @param cmd    extended length Command APDU
+     * @param name   name of given command
+     * @param skipSW if this error SW is returned, throw nothing
+     * @return Response APDU of the first failed segment or of the last segment
+     * @throws CardException if something on the smart card fails
+     */
+    private ResponseAPDU transmitSegmented(CommandAPDU cmd, String name, int skipSW) throws CardException {
+        ResponseAPDU res = null;
+
+        for (CommandAPDU c : splitArrayToCmd(cmd.getData(), (byte) cmd.getCLA(), (byte) cmd.getINS(),
+                (byte) cmd.getP1())) {
+            res = transmit(c, name, skipSW);
+            if (res.getSW() != SW_NO_ERROR)
+                break;
+        }
 
         return res;
     }
@@ -209,11 +313,14 @@ public abstract class AbstractProxy {
      * @return list of Response APDUs
      * @throws CardException if something on the smart card fails
      */
+    @SuppressWarnings("try")
     protected List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds, String name, int skipSW) throws CardException {
         List<ResponseAPDU> res = new ArrayList<>();
 
-        for (CommandAPDU c : cmds)
-            res.add(transmit(c, name, skipSW));
+        try (TraceRecorder.Span span = TRACE.start("transmitBatch", "proxy", name)) {
+            for (CommandAPDU c : cmds)
+                res.add(transmit(c, name, skipSW));
+        }
 
         return res;
     }
@@ -227,17 +334,21 @@ public abstract class AbstractProxy {
      * @return list of Response APDUs
      * @throws CardException if something on the smart card fails
      */
+    @SuppressWarnings("try")
     protected List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds, String name) throws CardException {
         List<ResponseAPDU> res = new ArrayList<>();
 
-        for (CommandAPDU c : cmds)
-            res.add(transmit(c, name));
+        try (TraceRecorder.Span span = TRACE.start("transmitBatch", "proxy", name)) {
+            for (CommandAPDU c : cmds)
+                res.add(transmit(c, name));
+        }
 
         return res;
     }
 
     /**
-     * Loads the data to the given {@code cmdA} and {@code cmdB} lists.
+     * Loads the data to the given {@code cmdA} and {@code cmdB} lists. The validated
+     * commands are cached until the file changes.
      *
      * @param fileName file name
      * @param cmdA     list of commands to transfer the first line to smart card
@@ -248,72 +359,171 @@ public abstract class AbstractProxy {
      * @param p1N      parameter byte it the partial modulus share
      * @throws IOException if the file with keys is missing or cannot be read
      */
+    @SuppressWarnings("try")
     protected void loadFile(String fileName, List<CommandAPDU> cmdA, List<CommandAPDU> cmdB, byte cla, byte ins,
                             byte p1D, byte p1N) throws IOException {
-        try (InputStream in = new FileInputStream(fileName)) {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        try (TraceRecorder.Span span = TRACE.start("loadFile", "host", fileName)) {
+            loadCachedFile(fileName, cmdA, cmdB, cla, ins, p1D, p1N);
+        }
+    }
 
-            byte[] num = Util.hexStringToByteArray(reader.readLine());
-            BigInteger d1Client = new BigInteger(1, num);
+    /**
+     * Loads the data to the given {@code cmdA} and {@code cmdB} lists from the cache
+     * or from the file.
+     *
+     * @param fileName file name
+     * @param cmdA     list of commands to transfer the first line to smart card
+     * @param cmdB     list of commands tor transfer the second line to smart card
+     * @param cla      class byte
+     * @param ins      instruction byte
+     * @param p1D      parameter byte it the private exponent share
+     * @param p1N      parameter byte it the partial modulus share
+     * @throws IOException if the file with keys is missing or cannot be read
+     */
+    private void loadCachedFile(String fileName, List<CommandAPDU> cmdA, List<CommandAPDU> cmdB, byte cla, byte ins,
+                                byte p1D, byte p1N) throws IOException {
+        KeyFileCache cache = KeyFileCache.getInstance();
+        int params = (cla & 0xFF) << 24 | (ins & 0xFF) << 16 | (p1D & 0xFF) << 8 | (p1N & 0xFF);
+        String key = KeyFileCache.key(fileName, Integer.toHexString(params) + cardMgr.isExtendedLength());
+
+        BasicFileAttributes attrs = KeyFileCache.attributes(fileName);
+        KeyFileCache.Entry entry = cache.get(key, attrs);
+        if (entry != null) {
+            cmdA.addAll(entry.cmdA);
+            cmdB.addAll(entry.cmdB);
+            return;
+        }
 
-            cmdA.addAll(splitArrayToCmd(num, cla, ins, p1D));
+        DataFile file = DataFile.read(fileName, 2);
 
-            num = Util.hexStringToByteArray(reader.readLine());
-            BigInteger n1 = new BigInteger(1, num);
+        List<CommandAPDU> newA = new ArrayList<>();
+        List<CommandAPDU> newB = new ArrayList<>();
+        try {
+            prepareKeys(file.get(0), file.get(1), newA, newB, cla, ins, p1D, p1N);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
 
-            if (num.length != PARTIAL_MODULUS_LENGTH)
-                throw new IOException(String.format("Modulus is not a %d-bit number.",
-                        PARTIAL_MODULUS_LENGTH));
+        cache.put(key, attrs, newA, newB);
 
-            if (d1Client.compareTo(n1) > 0)
-                throw new IOException("Private key cannot be larger than modulus.");
+        cmdA.addAll(newA);
+        cmdB.addAll(newB);
+    }
 
-            cmdB.addAll(splitArrayToCmd(num, cla, ins, p1N));
+    /**
+     * Validates the private exponent share {@code d} and partial modulus {@code n}
+     * and builds the commands to set them to the given {@code cmdD} and {@code cmdN} lists.
+     * Does not communicate with the card.
+     *
+     * @param d    byte array with the private exponent share
+     * @param n    byte array with the partial modulus
+     * @param cmdD list of commands to set the private exponent share
+     * @param cmdN list of commands to set the partial modulus
+     * @param cla  class byte
+     * @param ins  instruction byte
+     * @param p1D  parameter byte it the private exponent share
+     * @param p1N  parameter byte it the partial modulus share
+     * @throws IllegalArgumentException if the keys are not valid
+     */
+    protected void prepareKeys(byte[] d, byte[] n, List<CommandAPDU> cmdD, List<CommandAPDU> cmdN, byte cla,
+                               byte ins, byte p1D, byte p1N) {
+        if (n.length != PARTIAL_MODULUS_LENGTH)
+            throw new IllegalArgumentException(String.format("Modulus is not a %d-bit number.",
+                    PARTIAL_MODULUS_LENGTH));
 
-            if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", fileName));
-        }
+        if (new BigInteger(1, d).compareTo(new BigInteger(1, n)) > 0)
+            throw new IllegalArgumentException("Private key cannot be larger than modulus.");
+
+        cmdD.addAll(splitArrayToCmd(d, cla, ins, p1D));
+        cmdN.addAll(splitArrayToCmd(n, cla, ins, p1N));
     }
 
     /**
      * Performs operation {@code ins} to get multipart data and stores them into {@code fileName} file.
      *
-     * @param fileName  file name
-     * @param firstLine first line of saved file
-     * @param opName    name of operation
-     * @param cla       class byte
-     * @param ins       instruction byte
+     * @param fileName file name
+     * @param first    first number of saved file
+     * @param opName   name of operation
+     * @param cla      class byte
+     * @param ins      instruction byte
      * @throws CardException if something on the smart card fails
      * @throws IOException   if the {@code fileName} file cannot be created or written to
      */
-    protected void storeMultipartData(String fileName, String firstLine, String opName, byte cla, byte ins)
+    @SuppressWarnings("try")
+    protected void storeMultipartData(String fileName, byte[] first, String opName, byte cla, byte ins)
             throws CardException, IOException {
+        try (TraceRecorder.Span span = TRACE.start("storeMultipartData", "proxy", fileName)) {
+            byte[] data = getMultipartData(opName, cla, ins);
+            storeData(fileName, 16 * PARTIAL_MODULUS_LENGTH, first, Util.toHexTrimmed(first), data, Util.toHex(data));
+        }
+    }
+
+    /**
+     * Performs operation {@code ins} to get multipart data and returns them concatenated.
+     *
+     * @param opName name of operation
+     * @param cla    class byte
+     * @param ins    instruction byte
+     * @return byte array with all parts of the data
+     * @throws CardException if something on the smart card fails
+     */
+    protected byte[] getMultipartData(String opName, byte cla, byte ins) throws CardException {
+        if (cardMgr.isExtendedLength()) {
+            // ask for all parts at once, fall back to the segments
+            // if the applet returns only the first one
+            ResponseAPDU first = transmit(new CommandAPDU(cla, ins, NONE, P2_PART_0, 2 * PARTIAL_MODULUS_LENGTH),
+                    opName, SW_WRONG_LENGTH);
+
+            if (first.getSW() == SW_WRONG_LENGTH) {
+                cardMgr.setExtendedLength(false);
+            } else {
+                byte[] data = first.getData();
+                if (data.length == 2 * PARTIAL_MODULUS_LENGTH)
+                    return data;
+
+                ResponseAPDU second = transmit(new CommandAPDU(cla, ins, NONE, P2_PART_1, PARTIAL_MODULUS_LENGTH),
+                        opName);
+
+                ByteArrayOutputStream all = new ByteArrayOutputStream(2 * PARTIAL_MODULUS_LENGTH);
+                all.write(data, 0, data.length);
+                all.write(second.getData(), 0, second.getData().length);
+                return all.toByteArray();
+            }
+        }
 
         List<ResponseAPDU> res = transmitBatch(Arrays.asList(
                 new CommandAPDU(cla, ins, NONE, P2_PART_0, PARTIAL_MODULUS_LENGTH),
                 new CommandAPDU(cla, ins, NONE, P2_PART_1, PARTIAL_MODULUS_LENGTH)), opName);
 
-        StringBuilder data = new StringBuilder();
+        ByteArrayOutputStream data = new ByteArrayOutputStream(2 * PARTIAL_MODULUS_LENGTH);
         for (ResponseAPDU r : res) {
-            data.append(Util.toHex(r.getData()));
+            byte[] part = r.getData();
+            data.write(part, 0, part.length);
         }
 
-        storeData(fileName, firstLine, data.toString());
+        return data.toByteArray();
     }
 
     /**
-     * Stores given two lines into {@code fileName} file.
+     * Stores given two numbers into {@code fileName} file in the format selected
+     * by the {@code DataFile.FORMAT_PROPERTY} property.
      *
      * @param fileName   file name
-     * @param firstLine  first line
-     * @param secondLine second line
+     * @param keyBits    key size in bits
+     * @param first      first number
+     * @param firstLine  first number in the hex format
+     * @param second     second number
+     * @param secondLine second number in the hex format
      * @throws IOException if the {@code fileName} file cannot be created or written to
      */
-    protected void storeData(String fileName, String firstLine, String secondLine) throws IOException {
-        try (OutputStream out = new FileOutputStream(fileName)) {
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-            writer.write(String.format("%s%n%s%n", firstLine, secondLine));
-            writer.flush();
+    @SuppressWarnings("try")
+    protected void storeData(String fileName, int keyBits, byte[] first, String firstLine, byte[] second,
+                             String secondLine) throws IOException {
+        try (TraceRecorder.Span span = TRACE.start("storeData", "host", fileName)) {
+            if (DataFile.isBinary())
+                DataFile.writeBinary(fileName, keyBits, first, second);
+            else
+                DataFile.writeHex(fileName, firstLine, secondLine);
         }
     }
 
@@ -323,6 +533,9 @@ public abstract class AbstractProxy {
      * @param str string
      */
     protected void printAndFlush(String str) {
+        if (quiet)
+            return;
+
         System.out.printf(str);
         System.out.flush();
     }
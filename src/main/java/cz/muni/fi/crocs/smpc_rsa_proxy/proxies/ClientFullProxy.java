@@ -1,5 +1,7 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
 
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardState;
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
 
 import javax.smartcardio.CardException;
@@ -8,6 +10,8 @@ import javax.smartcardio.ResponseAPDU;
 
 import java.io.IOException;
 
+import java.util.List;
+
 /**
  * The {@link ClientFullProxy} class represents a full client party
  * in the SMPC RSA scheme.
@@ -36,7 +40,7 @@ public class ClientFullProxy extends AbstractClientProxy {
     /**
      * Applet ID
      */
-    private static final String APPLET_AID = "0102030405060708090103";
+    public static final String APPLET_AID = "0102030405060708090103";
 
     /**
      * Connects to a card a selects the client-full applet.
@@ -48,22 +52,70 @@ public class ClientFullProxy extends AbstractClientProxy {
         super(Util.hexStringToByteArray(APPLET_AID));
     }
 
+    /**
+     * Uses the given {@code cardMgr} card manager which has already
+     * selected the client-full applet.
+     *
+     * @param cardMgr connected card manager
+     */
+    public ClientFullProxy(CardManager cardMgr) {
+        super(cardMgr);
+    }
+
     @Override
     public void generateKeys() throws CardException, IOException {
+        byte[][] share = generateServerShare();
+        storeKeys(share[0], share[1]);
+    }
+
+    /**
+     * Generates the keys and returns the server share of client keys.
+     *
+     * @return byte arrays with the server private exponent share and the client partial modulus
+     * @throws CardException if something on the smart card fails
+     */
+    public byte[][] generateServerShare() throws CardException {
         printAndFlush("Generating keys...");
 
+        if (getState().getKeys() == CardState.Keys.PRESENT)
+            throw new CardException("Keys have already been set. Please, reset the card first.");
+
         int ret = transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_GENERATE_KEYS, NONE, NONE),
                 "Keygen", SW_COMMAND_NOT_ALLOWED).getSW();
+        getState().setKeys(null);
         if (ret == SW_COMMAND_NOT_ALLOWED)
             throw new CardException("Keys have already been set. Please, reset the card first.");
 
         printOK();
-        storeKeys();
+
+        return getServerShare();
+    }
+
+    /**
+     * Returns the server share of client keys generated on the card.
+     *
+     * @return byte arrays with the server private exponent share and the client partial modulus
+     * @throws CardException if something on the smart card fails
+     */
+    public byte[][] getServerShare() throws CardException {
+        printAndFlush("Getting the server client keys share...");
+        ResponseAPDU d1Server = transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_GET_KEYS, P1_GET_D1_SERVER, NONE,
+                PARTIAL_MODULUS_LENGTH), "Get D''1");
+        ResponseAPDU n1 = transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_GET_KEYS, P1_GET_N1, NONE,
+                PARTIAL_MODULUS_LENGTH), "Get N1");
+        printOK();
+
+        return new byte[][]{d1Server.getData(), n1.getData()};
     }
 
     @Override
-    public void signMessage() throws CardException, IOException {
-        clientSignMessage(CLA_RSA_SMPC_CLIENT, INS_SET_MESSAGE, INS_SIGNATURE);
+    public List<CommandAPDU> prepareMessage(byte[] message) {
+        return clientPrepareMessage(CLA_RSA_SMPC_CLIENT, INS_SET_MESSAGE, message);
+    }
+
+    @Override
+    public byte[] signPrepared(List<CommandAPDU> cmdMessage) throws CardException {
+        return clientSignPrepared(CLA_RSA_SMPC_CLIENT, INS_SIGNATURE, cmdMessage);
     }
 
     @Override
@@ -74,20 +126,14 @@ public class ClientFullProxy extends AbstractClientProxy {
     /**
      * Stores the server share of client keys to the {@code CLIENT_KEYS_SERVER_SHARE_FILE} file.
      *
-     * @throws CardException if something on the smart card fails
-     * @throws IOException   if the server keys share file cannot be created or written to
+     * @param d1Server byte array with the server private exponent share
+     * @param n1       byte array with the client partial modulus
+     * @throws IOException if the server keys share file cannot be created or written to
      */
-    private void storeKeys() throws CardException, IOException {
+    private void storeKeys(byte[] d1Server, byte[] n1) throws IOException {
         printAndFlush("Storing the server client keys share...");
-
-        ResponseAPDU d1Server = transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_GET_KEYS, P1_GET_D1_SERVER, NONE,
-                PARTIAL_MODULUS_LENGTH), "Get D''1");
-        ResponseAPDU n1 = transmit(new CommandAPDU(CLA_RSA_SMPC_CLIENT, INS_GET_KEYS, P1_GET_N1, NONE,
-                PARTIAL_MODULUS_LENGTH), "Get N1");
-
-        storeData(CLIENT_KEYS_SERVER_SHARE_FILE, Util.toHexTrimmed(d1Server.getData()),
-                Util.toHexTrimmed(n1.getData()));
-
+        storeData(CLIENT_KEYS_SERVER_SHARE_FILE, 8 * PARTIAL_MODULUS_LENGTH, d1Server, Util.toHexTrimmed(d1Server),
+                n1, Util.toHexTrimmed(n1));
         printOK();
     }
 
@@ -1,5 +1,7 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
 
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardState;
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
 
 import javax.smartcardio.CardException;
@@ -38,7 +40,7 @@ public class ClientSignProxy extends AbstractClientProxy {
     /**
      * Applet ID
      */
-    private static final String APPLET_AID = "0102030405060708090102";
+    public static final String APPLET_AID = "0102030405060708090102";
 
     /**
      * Connects to a card a selects the client-sign applet.
@@ -50,14 +52,29 @@ public class ClientSignProxy extends AbstractClientProxy {
         super(Util.hexStringToByteArray(APPLET_AID));
     }
 
+    /**
+     * Uses the given {@code cardMgr} card manager which has already
+     * selected the client-sign applet.
+     *
+     * @param cardMgr connected card manager
+     */
+    public ClientSignProxy(CardManager cardMgr) {
+        super(cardMgr);
+    }
+
     @Override
     public void generateKeys() throws IOException, CardException {
         setClientKeys();
     }
 
     @Override
-    public void signMessage() throws IOException, CardException {
-        clientSignMessage(CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_MESSAGE, INS_SIGNATURE);
+    public List<CommandAPDU> prepareMessage(byte[] message) {
+        return clientPrepareMessage(CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_MESSAGE, message);
+    }
+
+    @Override
+    public byte[] signPrepared(List<CommandAPDU> cmdMessage) throws CardException {
+        return clientSignPrepared(CLA_RSA_SMPC_CLIENT_SIGN, INS_SIGNATURE, cmdMessage);
     }
 
     @Override
@@ -76,13 +93,54 @@ public class ClientSignProxy extends AbstractClientProxy {
         List<CommandAPDU> cmdN1 = new ArrayList<>();
 
         loadClientKeys(cmdD1Client, cmdN1);
+        transmitKeys(cmdD1Client, cmdN1);
+    }
+
+    /**
+     * Sets the given client keys to the card.
+     *
+     * @param d1Client byte array with the client private exponent share
+     * @param n1       byte array with the client partial modulus
+     * @throws IllegalArgumentException if the keys are not valid
+     * @throws CardException            if something on the smart card fails
+     */
+    public void setClientKeys(byte[] d1Client, byte[] n1) throws CardException {
+        List<CommandAPDU> cmdD1Client = new ArrayList<>();
+        List<CommandAPDU> cmdN1 = new ArrayList<>();
 
+        prepareKeys(d1Client, n1, cmdD1Client, cmdN1, CLA_RSA_SMPC_CLIENT_SIGN, INS_SET_KEYS,
+                P1_SET_D1_CLIENT, P1_SET_N1);
+        transmitKeys(cmdD1Client, cmdN1);
+    }
+
+    /**
+     * Transmits the client keys to the card unless they are already set.
+     *
+     * @param cmdD1Client list of commands to set the client private exponent share
+     * @param cmdN1       list of commands to set the client partial modulus
+     * @throws CardException if something on the smart card fails
+     */
+    private void transmitKeys(List<CommandAPDU> cmdD1Client, List<CommandAPDU> cmdN1) throws CardException {
         printAndFlush("Transmitting keys...");
+
+        // the same keys are already set
+        String fingerprint = CardState.fingerprint(cmdD1Client, cmdN1);
+        if (getState().getKeys() == CardState.Keys.PRESENT && fingerprint.equals(getState().getKeyFingerprint())) {
+            printOK();
+            return;
+        }
+
+        if (getState().getKeys() == CardState.Keys.PRESENT)
+            throw new CardException("Keys have already been set. Please, reset the card first.");
+
         int res = transmitBatch(cmdD1Client, "Set D'1", SW_COMMAND_NOT_ALLOWED).get(0).getSW();
-        if (res == SW_COMMAND_NOT_ALLOWED)
+        if (res == SW_COMMAND_NOT_ALLOWED) {
+            getState().setKeys(null);
             throw new CardException("Keys have already been set. Please, reset the card first.");
+        }
 
         transmitBatch(cmdN1, "Set N1");
+        getState().setKeys(fingerprint);
         printOK();
     }
 
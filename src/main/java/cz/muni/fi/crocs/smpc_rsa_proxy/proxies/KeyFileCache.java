@@ -0,0 +1,151 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
+
+import javax.smartcardio.CommandAPDU;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link KeyFileCache} class keeps the validated key files
+ * as the prebuilt command lists, so the long-running actions do not parse
+ * the same file repeatedly.
+ * <p>
+ * The entries are keyed by the absolute path of the file and the command
+ * parameters and are valid while the size and the modification time of the file
+ * stay the same. Files modified in the last {@code STABLE_MILLIS} milliseconds
+ * are not cached, because another change within the timestamp granularity
+ * would not be noticed.
+ *
+ * @author Lukas Zaoral
+ */
+class KeyFileCache {
+
+    /**
+     * Minimal age of a cached file in milliseconds
+     */
+    private static final long STABLE_MILLIS = 2000;
+
+    /**
+     * Maximal number of entries
+     */
+    private static final int MAX_ENTRIES = 64;
+
+    private static final KeyFileCache INSTANCE = new KeyFileCache();
+
+    /**
+     * The {@link Entry} class represents the commands built from a single file version.
+     */
+    static class Entry {
+        final long size;
+        final long modified;
+        final List<CommandAPDU> cmdA;
+        final List<CommandAPDU> cmdB;
+
+        Entry(long size, long modified, List<CommandAPDU> cmdA, List<CommandAPDU> cmdB) {
+            this.size = size;
+            this.modified = modified;
+            this.cmdA = Collections.unmodifiableList(cmdA);
+            this.cmdB = Collections.unmodifiableList(cmdB);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private KeyFileCache() {
+    }
+
+    /**
+     * Returns the cache of the process.
+     *
+     * @return shared cache
+     */
+    static KeyFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key of the {@code fileName} file loaded with the given command parameters.
+     *
+     * @param fileName file name
+     * @param params   command parameters affecting the built commands
+     * @return cache key
+     */
+    static String key(String fileName, String params) {
+        return Paths.get(fileName).toAbsolutePath().normalize() + "|" + params;
+    }
+
+    /**
+     * Returns the attributes of the {@code fileName} file.
+     *
+     * @param fileName file name
+     * @return file attributes
+     * @throws FileNotFoundException if the file is missing
+     * @throws IOException           if the attributes cannot be read
+     */
+    static BasicFileAttributes attributes(String fileName) throws IOException {
+        try {
+            return Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(fileName);
+        }
+    }
+
+    /**
+     * Returns the entry of the file with given {@code key} if it is still valid.
+     *
+     * @param key   cache key
+     * @param attrs current file attributes
+     * @return valid entry or null
+     */
+    Entry get(String key, BasicFileAttributes attrs) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.size != attrs.size() || entry.modified != attrs.lastModifiedTime().toMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores the commands built from the file with given {@code key} unless it has been
+     * modified recently.
+     *
+     * @param key   cache key
+     * @param attrs file attributes read before the file
+     * @param cmdA  commands built from the first number
+     * @param cmdB  commands built from the second number
+     */
+    void put(String key, BasicFileAttributes attrs, List<CommandAPDU> cmdA, List<CommandAPDU> cmdB) {
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (System.currentTimeMillis() - modified < STABLE_MILLIS)
+            return;
+
+        // the set of key files is small, drop everything rather than tracking the usage
+        if (entries.size() >= MAX_ENTRIES)
+            entries.clear();
+
+        entries.put(key, new Entry(attrs.size(), modified, cmdA, cmdB));
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+}
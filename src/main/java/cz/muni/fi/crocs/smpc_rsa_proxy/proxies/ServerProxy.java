@@ -1,16 +1,15 @@
 package cz.muni.fi.crocs.smpc_rsa_proxy.proxies;
 
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardManager;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.CardState;
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.DataFile;
 import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -48,10 +47,24 @@ public class ServerProxy extends AbstractProxy {
     private static final byte P1_SET_MESSAGE = 0x00;
     private static final byte P1_SET_SIGNATURE = 0x01;
 
+    /**
+     * The {@link SignCommands} class holds the commands to set the message
+     * and client signature share.
+     */
+    public static class SignCommands {
+        private final List<CommandAPDU> cmdMessage;
+        private final List<CommandAPDU> cmdClientSig;
+
+        private SignCommands(List<CommandAPDU> cmdMessage, List<CommandAPDU> cmdClientSig) {
+            this.cmdMessage = cmdMessage;
+            this.cmdClientSig = cmdClientSig;
+        }
+    }
+
     /**
      * Applet ID
      */
-    private static final String APPLET_AID = "0102030405060708090104";
+    public static final String APPLET_AID = "0102030405060708090104";
 
     /**
      * Connects to a card a selects the server applet.
@@ -63,52 +76,153 @@ public class ServerProxy extends AbstractProxy {
         super(Util.hexStringToByteArray(APPLET_AID));
     }
 
+    /**
+     * Uses the given {@code cardMgr} card manager which has already
+     * selected the server applet.
+     *
+     * @param cardMgr connected card manager
+     */
+    public ServerProxy(CardManager cardMgr) {
+        super(cardMgr);
+    }
+
     @Override
     public void generateKeys() throws CardException, IOException {
+        List<CommandAPDU> cmdD1Server = new ArrayList<>();
+        List<CommandAPDU> cmdN1 = new ArrayList<>();
+
+        loadClientKeys(cmdD1Server, cmdN1);
+        generateKeys(cmdD1Server, cmdN1);
+        getPublicModulus();
+    }
+
+    /**
+     * Generates the keys, sets the given server share of client keys and
+     * returns the public modulus.
+     *
+     * @param d1Server byte array with the server private exponent share
+     * @param n1       byte array with the client partial modulus
+     * @return byte array with the public modulus
+     * @throws IllegalArgumentException if the client keys are not valid
+     * @throws CardException            if something on the smart card fails
+     */
+    public byte[] generateKeys(byte[] d1Server, byte[] n1) throws CardException {
+        List<CommandAPDU> cmdD1Server = new ArrayList<>();
+        List<CommandAPDU> cmdN1 = new ArrayList<>();
+
+        prepareKeys(d1Server, n1, cmdD1Server, cmdN1, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_KEYS,
+                P1_SET_D1_SERVER, P1_SET_N1);
+        generateKeys(cmdD1Server, cmdN1);
+
+        return getMultipartData("GetModulus", CLA_RSA_SMPC_SERVER, INS_GET_PUBLIC_MODULUS);
+    }
+
+    /**
+     * Generates the keys and sets the server share of client keys.
+     *
+     * @param cmdD1Server list of commands to set the server private exponent share
+     * @param cmdN1       list of commands to set the client partial modulus
+     * @throws CardException if something on the smart card fails
+     */
+    private void generateKeys(List<CommandAPDU> cmdD1Server, List<CommandAPDU> cmdN1) throws CardException {
         printAndFlush("Generating keys...");
 
+        if (getState().getKeys() == CardState.Keys.PRESENT)
+            throw new CardException("Keys have already been set. Please, reset the card first.");
+
         int ret = transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_GENERATE_KEYS, NONE, NONE),
                 "Keygen", SW_COMMAND_NOT_ALLOWED).getSW();
+        getState().setKeys(null);
         if (ret == SW_COMMAND_NOT_ALLOWED)
             throw new CardException("Keys have already been set. Please, reset the card first.");
 
         printOK();
-        setClientKeys();
-        getPublicModulus();
+
+        printAndFlush("Transmitting client keys share...");
+        transmitBatch(cmdD1Server, "Set D''1");
+        transmitBatch(cmdN1, "Set N1");
+        printOK();
     }
 
     @Override
     public void signMessage() throws IOException, CardException {
-        String message = loadClientSignature();
-
-        printAndFlush("Signing...");
-        transmit(new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE), "Sign");
-        printOK();
+        DataFile file = loadClientSignature();
+        byte[] signature = signMessage(file.get(0), file.get(1));
+        storeFinalSignature(file.get(0), file.getHex(0), signature);
+    }
 
-        getFinalSignature(message);
+    /**
+     * Computes the final signature of the given {@code message} from the client
+     * signature share {@code clientSignature}.
+     *
+     * @param message         byte array with the message
+     * @param clientSignature byte array with the client signature share
+     * @return byte array with the final signature
+     * @throws CardException if something on the smart card fails
+     */
+    public byte[] signMessage(byte[] message, byte[] clientSignature) throws CardException {
+        return signPrepared(prepareSignature(message, clientSignature));
     }
 
-    @Override
-    public void reset() throws CardException {
-        resetHelper(CLA_RSA_SMPC_SERVER, INS_RESET);
+    /**
+     * Builds the commands to set the given {@code message} and client signature
+     * share {@code clientSignature}. Does not communicate with the card.
+     *
+     * @param message         byte array with the message
+     * @param clientSignature byte array with the client signature share
+     * @return commands to set the message and client signature share
+     */
+    public SignCommands prepareSignature(byte[] message, byte[] clientSignature) {
+        if (message.length > PARTIAL_MODULUS_LENGTH)
+            throw new IllegalArgumentException("Message cannot be larger than the modulus.");
+
+        if (clientSignature.length > PARTIAL_MODULUS_LENGTH)
+            throw new IllegalArgumentException("Client signature share cannot be larger than the modulus.");
+
+        return new SignCommands(
+                splitArrayToCmd(message, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE),
+                splitArrayToCmd(clientSignature, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE)
+        );
     }
 
     /**
-     * Sets the server share of client keys.
+     * Computes the final signature using the {@code cmds} commands
+     * built by {@link #prepareSignature(byte[], byte[])}.
      *
+     * @param cmds commands to set the message and client signature share
+     * @return byte array with the final signature
      * @throws CardException if something on the smart card fails
-     * @throws IOException   if the file with keys is missing or cannot be read
      */
-    private void setClientKeys() throws CardException, IOException {
-        List<CommandAPDU> cmdD1Server = new ArrayList<>();
-        List<CommandAPDU> cmdN1 = new ArrayList<>();
+    public byte[] signPrepared(SignCommands cmds) throws CardException {
+        String fingerprint = CardState.fingerprint(cmds.cmdMessage, cmds.cmdClientSig);
+        boolean skipped = getState().isMessageSet(fingerprint);
+        if (!skipped)
+            sendClientSignature(cmds.cmdMessage, cmds.cmdClientSig, fingerprint);
 
-        loadClientKeys(cmdD1Server, cmdN1);
+        printAndFlush("Signing...");
+        CommandAPDU cmdSign = new CommandAPDU(CLA_RSA_SMPC_SERVER, INS_SIGNATURE, NONE, NONE);
+        int ret = transmit(cmdSign, "Sign", SW_CONDITIONS_NOT_SATISFIED).getSW();
+
+        // the card state differs from the model, upload the client signature again
+        if (ret == SW_CONDITIONS_NOT_SATISFIED) {
+            getState().invalidate();
+            if (!skipped)
+                throw new CardException(String.format("Sign SW: %02X", ret));
+
+            printAndFlush(" \u001B[1;33mRETRY\u001B[0m%n");
+            sendClientSignature(cmds.cmdMessage, cmds.cmdClientSig, fingerprint);
+            printAndFlush("Signing...");
+            transmit(cmdSign, "Sign");
+        }
 
-        printAndFlush("Transmitting client keys share...");
-        transmitBatch(cmdD1Server, "Set D''1");
-        transmitBatch(cmdN1, "Set N1");
         printOK();
+
+        return getMultipartData("GetFinalSig", CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE);
+    }
+
+    @Override
+    public void reset() throws CardException {
+        resetHelper(CLA_RSA_SMPC_SERVER, INS_RESET);
     }
 
     /**
@@ -140,55 +254,38 @@ public class ServerProxy extends AbstractProxy {
      */
     private void getPublicModulus() throws CardException, IOException {
         printAndFlush("Storing public modulus...");
-        storeMultipartData(PUBLIC_KEY_FILE, Util.toHexTrimmed(E), "GetModulus", CLA_RSA_SMPC_SERVER,
+        storeMultipartData(PUBLIC_KEY_FILE, E, "GetModulus", CLA_RSA_SMPC_SERVER,
                 INS_GET_PUBLIC_MODULUS);
         printOK();
     }
 
     /**
-     * Loads the message and client signature from the {@code CLIENT_SIG_SHARE_FILE} file
-     * and transmits it to the smart card.
+     * Loads the message and client signature from the {@code CLIENT_SIG_SHARE_FILE} file.
      *
-     * @return hex string with the message
-     * @throws CardException if something on the smart card fails
-     * @throws IOException   if the file with message is missing or cannot be read
+     * @return file with the message and the client signature share
+     * @throws IOException if the file with message is missing or cannot be read
      */
-    private String loadClientSignature() throws CardException, IOException {
+    private DataFile loadClientSignature() throws IOException {
         printAndFlush("Loading client signature...");
 
-        List<CommandAPDU> cmdMessage = new ArrayList<>();
-        List<CommandAPDU> cmdClientSig = new ArrayList<>();
-        String message;
-
-        try (InputStream in = new FileInputStream(CLIENT_SIG_SHARE_FILE)) {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        DataFile file;
 
-            message = reader.readLine();
-            byte[] num = Util.hexStringToByteArray(message);
+        try {
+            file = DataFile.read(CLIENT_SIG_SHARE_FILE, 2);
 
-            if (num.length > PARTIAL_MODULUS_LENGTH)
+            if (file.get(0).length > PARTIAL_MODULUS_LENGTH)
                 throw new IllegalArgumentException("Message cannot be larger than the modulus.");
 
-            cmdMessage.addAll(splitArrayToCmd(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_MESSAGE));
-
-            num = Util.hexStringToByteArray(reader.readLine());
-
-            if (num.length > PARTIAL_MODULUS_LENGTH)
+            if (file.get(1).length > PARTIAL_MODULUS_LENGTH)
                 throw new IllegalArgumentException("Client signature share cannot be larger than the modulus.");
 
-            cmdClientSig.addAll(splitArrayToCmd(num, CLA_RSA_SMPC_SERVER, INS_SET_CLIENT_SIGNATURE, P1_SET_SIGNATURE));
-
-            if (reader.readLine() != null)
-                throw new IOException(String.format("Wrong '%s' file format.", CLIENT_SIG_SHARE_FILE));
-
         } catch (FileNotFoundException e) {
             System.err.println("The client signature share has not been computed. Run the client first.");
             throw e;
         }
 
         printOK();
-        sendClientSignature(cmdMessage, cmdClientSig);
-        return message;
+        return file;
     }
 
     /**
@@ -196,31 +293,40 @@ public class ServerProxy extends AbstractProxy {
      *
      * @param cmdMessage   list of commands to set the message
      * @param cmdClientSig list of commands to set the client signature share
+     * @param fingerprint  fingerprint of the message and client signature share commands
      * @throws CardException if something on the smart card fails
      */
-    private void sendClientSignature(List<CommandAPDU> cmdMessage, List<CommandAPDU> cmdClientSig)
-            throws CardException {
+    private void sendClientSignature(List<CommandAPDU> cmdMessage, List<CommandAPDU> cmdClientSig,
+                                     String fingerprint) throws CardException {
         printAndFlush("Transmitting client signature...");
+        if (getState().getKeys() == CardState.Keys.ABSENT)
+            throw new CardException("Keys have not been generated/set yet.");
+
         int ret = transmitBatch(cmdMessage, "Set message", SW_CONDITIONS_NOT_SATISFIED).get(0).getSW();
-        if (ret == SW_CONDITIONS_NOT_SATISFIED)
+        if (ret == SW_CONDITIONS_NOT_SATISFIED) {
+            getState().invalidate();
             throw new CardException("Keys have not been generated/set yet.");
+        }
 
         transmitBatch(cmdClientSig, "Set client signature share");
+        getState().setMessage(fingerprint);
+        getState().confirmKeys();
         printOK();
     }
 
     /**
-     * Gets and stores the final signature.
+     * Stores the final signature.
      *
-     * @param message hex string with message
-     * @throws CardException if something on the smart card fails
-     * @throws IOException   if the file with final signature cannot be created or written to
+     * @param message     byte array with the message
+     * @param messageLine hex string with the message
+     * @param signature   byte array with the final signature
+     * @throws IOException if the file with final signature cannot be created or written to
      */
-    private void getFinalSignature(String message) throws CardException, IOException {
+    private void storeFinalSignature(byte[] message, String messageLine, byte[] signature) throws IOException {
         printAndFlush("Storing final signature...");
-        storeMultipartData(FINAL_SIG_FILE, message, "GetFinalSig", CLA_RSA_SMPC_SERVER, INS_GET_SIGNATURE);
+        storeData(FINAL_SIG_FILE, 16 * PARTIAL_MODULUS_LENGTH, message, messageLine, signature,
+                Util.toHex(signature));
         printOK();
     }
 
-
 }
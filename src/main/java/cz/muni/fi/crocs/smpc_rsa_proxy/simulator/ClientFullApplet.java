@@ -0,0 +1,116 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.math.BigInteger;
+
+/**
+ * The {@link ClientFullApplet} class simulates the client applet
+ * which generates the client keys and signs messages.
+ * <p>
+ * The private exponent is additively split to the client share, which is kept
+ * on the card, and the server share, which is exported with the modulus.
+ *
+ * @author Lukas Zaoral
+ */
+class ClientFullApplet extends SimulatedApplet {
+
+    /**
+     * Applet ID
+     */
+    static final String APPLET_AID = "0102030405060708090103";
+
+    /**
+     * Instruction codes
+     */
+    private static final int INS_GENERATE_KEYS = 0x10;
+    private static final int INS_GET_KEYS = 0x12;
+    private static final int INS_SET_MESSAGE = 0x14;
+    private static final int INS_SIGNATURE = 0x16;
+    private static final int INS_RESET = 0x18;
+
+    /**
+     * P1 parameters of the INS_GET_KEYS instruction
+     */
+    private static final int P1_GET_D1_SERVER = 0x00;
+    private static final int P1_GET_N1 = 0x01;
+
+    private BigInteger d1Client = null;
+    private BigInteger d1Server = null;
+    private BigInteger n1 = null;
+    private final Value message = new Value();
+
+    ClientFullApplet() {
+        super(APPLET_AID);
+    }
+
+    @Override
+    ResponseAPDU processIns(CommandAPDU cmd) {
+        switch (cmd.getINS()) {
+            case INS_GENERATE_KEYS:
+                return generateKeys();
+            case INS_GET_KEYS:
+                return getKeys(cmd);
+            case INS_SET_MESSAGE:
+                return setMessage(cmd);
+            case INS_SIGNATURE:
+                return sign();
+            case INS_RESET:
+                d1Client = null;
+                d1Server = null;
+                n1 = null;
+                message.clear();
+                return status(SW_NO_ERROR);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    private ResponseAPDU generateKeys() {
+        if (n1 != null)
+            return status(SW_COMMAND_NOT_ALLOWED);
+
+        BigInteger[] key = generateKey();
+        BigInteger phi = key[2];
+
+        BigInteger share;
+        do {
+            share = new BigInteger(phi.bitLength(), RANDOM);
+        } while (share.signum() == 0 || share.compareTo(phi) >= 0);
+
+        n1 = key[0];
+        d1Client = share;
+        d1Server = key[1].subtract(share).mod(phi);
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU getKeys(CommandAPDU cmd) {
+        if (n1 == null)
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        switch (cmd.getP1()) {
+            case P1_GET_D1_SERVER:
+                return data(d1Server, PARTIAL_MODULUS_LENGTH);
+            case P1_GET_N1:
+                return data(n1, PARTIAL_MODULUS_LENGTH);
+            default:
+                return status(SW_WRONG_P1P2);
+        }
+    }
+
+    private ResponseAPDU setMessage(CommandAPDU cmd) {
+        if (n1 == null)
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        return message.put(cmd.getP2(), cmd.getData()) ? status(SW_NO_ERROR) : status(SW_WRONG_P1P2);
+    }
+
+    private ResponseAPDU sign() {
+        if (!message.isSet())
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        return data(message.get().modPow(d1Client, n1), PARTIAL_MODULUS_LENGTH);
+    }
+
+}
@@ -0,0 +1,93 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * The {@link ClientSignApplet} class simulates the client applet
+ * which signs messages with the keys set by the user.
+ *
+ * @author Lukas Zaoral
+ */
+class ClientSignApplet extends SimulatedApplet {
+
+    /**
+     * Applet ID
+     */
+    static final String APPLET_AID = "0102030405060708090102";
+
+    /**
+     * Instruction codes
+     */
+    private static final int INS_SET_KEYS = 0x10;
+    private static final int INS_SET_MESSAGE = 0x12;
+    private static final int INS_SIGNATURE = 0x14;
+    private static final int INS_RESET = 0x16;
+
+    /**
+     * P1 parameters of the INS_SET_KEYS instruction
+     */
+    private static final int P1_SET_D1_CLIENT = 0x00;
+    private static final int P1_SET_N1 = 0x01;
+
+    private final Value d1Client = new Value();
+    private final Value n1 = new Value();
+    private final Value message = new Value();
+
+    ClientSignApplet() {
+        super(APPLET_AID);
+    }
+
+    @Override
+    ResponseAPDU processIns(CommandAPDU cmd) {
+        switch (cmd.getINS()) {
+            case INS_SET_KEYS:
+                return setKeys(cmd);
+            case INS_SET_MESSAGE:
+                return setMessage(cmd);
+            case INS_SIGNATURE:
+                return sign();
+            case INS_RESET:
+                d1Client.clear();
+                n1.clear();
+                message.clear();
+                return status(SW_NO_ERROR);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    private ResponseAPDU setKeys(CommandAPDU cmd) {
+        if (d1Client.isSet() && n1.isSet())
+            return status(SW_COMMAND_NOT_ALLOWED);
+
+        Value target;
+        switch (cmd.getP1()) {
+            case P1_SET_D1_CLIENT:
+                target = d1Client;
+                break;
+            case P1_SET_N1:
+                target = n1;
+                break;
+            default:
+                return status(SW_WRONG_P1P2);
+        }
+
+        return target.put(cmd.getP2(), cmd.getData()) ? status(SW_NO_ERROR) : status(SW_WRONG_P1P2);
+    }
+
+    private ResponseAPDU setMessage(CommandAPDU cmd) {
+        if (!d1Client.isSet() || !n1.isSet())
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        return message.put(cmd.getP2(), cmd.getData()) ? status(SW_NO_ERROR) : status(SW_WRONG_P1P2);
+    }
+
+    private ResponseAPDU sign() {
+        if (!message.isSet())
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        return data(message.get().modPow(d1Client.get(), n1.get()), PARTIAL_MODULUS_LENGTH);
+    }
+
+}
@@ -0,0 +1,169 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.math.BigInteger;
+
+/**
+ * The {@link ServerApplet} class simulates the server applet.
+ * <p>
+ * The final signature is combined from the client signature share, the server
+ * share of the client key and the server key using the Chinese remainder theorem,
+ * so it is valid for the public modulus {@code n = n1 * n2}.
+ *
+ * @author Lukas Zaoral
+ */
+class ServerApplet extends SimulatedApplet {
+
+    /**
+     * Applet ID
+     */
+    static final String APPLET_AID = "0102030405060708090104";
+
+    /**
+     * Instruction codes
+     */
+    private static final int INS_GENERATE_KEYS = 0x10;
+    private static final int INS_SET_CLIENT_KEYS = 0x12;
+    private static final int INS_GET_PUBLIC_MODULUS = 0x14;
+    private static final int INS_SET_CLIENT_SIGNATURE = 0x16;
+    private static final int INS_SIGNATURE = 0x18;
+    private static final int INS_GET_SIGNATURE = 0x20;
+    private static final int INS_RESET = 0x22;
+
+    /**
+     * P1 parameters of the INS_SET_CLIENT_KEYS instruction
+     */
+    private static final int P1_SET_N1 = 0x00;
+    private static final int P1_SET_D1_SERVER = 0x01;
+
+    /**
+     * P1 parameters of the INS_SET_CLIENT_SIGNATURE instruction
+     */
+    private static final int P1_SET_MESSAGE = 0x00;
+    private static final int P1_SET_SIGNATURE = 0x01;
+
+    private BigInteger n2 = null;
+    private BigInteger d2 = null;
+    private BigInteger n = null;
+    private BigInteger signature = null;
+
+    private final Value n1 = new Value();
+    private final Value d1Server = new Value();
+    private final Value message = new Value();
+    private final Value clientSignature = new Value();
+
+    ServerApplet() {
+        super(APPLET_AID);
+    }
+
+    @Override
+    ResponseAPDU processIns(CommandAPDU cmd) {
+        switch (cmd.getINS()) {
+            case INS_GENERATE_KEYS:
+                return generateKeys();
+            case INS_SET_CLIENT_KEYS:
+                return setClientKeys(cmd);
+            case INS_GET_PUBLIC_MODULUS:
+                return n == null ? status(SW_CONDITIONS_NOT_SATISFIED) : multipart(cmd, n);
+            case INS_SET_CLIENT_SIGNATURE:
+                return setClientSignature(cmd);
+            case INS_SIGNATURE:
+                return sign();
+            case INS_GET_SIGNATURE:
+                return signature == null ? status(SW_CONDITIONS_NOT_SATISFIED) : multipart(cmd, signature);
+            case INS_RESET:
+                reset();
+                return status(SW_NO_ERROR);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    private void reset() {
+        n2 = null;
+        d2 = null;
+        n = null;
+        signature = null;
+        n1.clear();
+        d1Server.clear();
+        message.clear();
+        clientSignature.clear();
+    }
+
+    private ResponseAPDU generateKeys() {
+        if (n2 != null)
+            return status(SW_COMMAND_NOT_ALLOWED);
+
+        BigInteger[] key = generateKey();
+        n2 = key[0];
+        d2 = key[1];
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU setClientKeys(CommandAPDU cmd) {
+        if (n2 == null)
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        if (n != null)
+            return status(SW_COMMAND_NOT_ALLOWED);
+
+        Value target;
+        switch (cmd.getP1()) {
+            case P1_SET_N1:
+                target = n1;
+                break;
+            case P1_SET_D1_SERVER:
+                target = d1Server;
+                break;
+            default:
+                return status(SW_WRONG_P1P2);
+        }
+
+        if (!target.put(cmd.getP2(), cmd.getData()))
+            return status(SW_WRONG_P1P2);
+
+        if (n1.isSet() && d1Server.isSet())
+            n = n1.get().multiply(n2);
+
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU setClientSignature(CommandAPDU cmd) {
+        if (n == null)
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        Value target;
+        switch (cmd.getP1()) {
+            case P1_SET_MESSAGE:
+                target = message;
+                break;
+            case P1_SET_SIGNATURE:
+                target = clientSignature;
+                break;
+            default:
+                return status(SW_WRONG_P1P2);
+        }
+
+        signature = null;
+        return target.put(cmd.getP2(), cmd.getData()) ? status(SW_NO_ERROR) : status(SW_WRONG_P1P2);
+    }
+
+    private ResponseAPDU sign() {
+        if (!message.isSet() || !clientSignature.isSet())
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+
+        BigInteger m = message.get();
+        BigInteger modN1 = n1.get();
+
+        BigInteger s1 = m.modPow(d1Server.get(), modN1).multiply(clientSignature.get()).mod(modN1);
+        BigInteger s2 = m.modPow(d2, n2);
+
+        // s = s2 + n2 * ((s1 - s2) * n2^-1 mod n1)
+        BigInteger h = s1.subtract(s2).multiply(n2.modInverse(modN1)).mod(modN1);
+        signature = s2.add(n2.multiply(h));
+        return status(SW_NO_ERROR);
+    }
+
+}
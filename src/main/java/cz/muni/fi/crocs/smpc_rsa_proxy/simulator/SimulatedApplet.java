@@ -0,0 +1,241 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.math.BigInteger;
+
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+
+/**
+ * The {@link SimulatedApplet} abstract class represents a common interface
+ * of the simulated SMPC RSA applets.
+ *
+ * @author Lukas Zaoral
+ */
+abstract class SimulatedApplet {
+
+    /**
+     * Response APDU SW codes
+     */
+    static final int SW_NO_ERROR = 0x9000;
+    static final int SW_WRONG_LENGTH = 0x6700;
+    static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    static final int SW_COMMAND_NOT_ALLOWED = 0x6986;
+    static final int SW_WRONG_P1P2 = 0x6B00;
+    static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+    /**
+     * P2 parameters of received and sent data
+     */
+    static final int P2_PART_0 = 0x00;
+    static final int P2_PART_1 = 0x01;
+    static final int P2_DIVIDED = 0x10;
+
+    /**
+     * Constants
+     */
+    static final int CLA_RSA_SMPC = 0x80;
+    static final int PARTIAL_MODULUS_LENGTH = 256;
+    static final BigInteger E = BigInteger.valueOf(65537);
+
+    static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The {@link Value} class represents a number received
+     * in one or two parts.
+     */
+    static class Value {
+        private BigInteger value = null;
+        private final byte[][] parts = new byte[2][];
+
+        /**
+         * Stores the data of a single command.
+         *
+         * @param p2   second parameter byte with the part number
+         * @param data received data
+         * @return false if the part number is invalid
+         */
+        boolean put(int p2, byte[] data) {
+            if ((p2 & P2_DIVIDED) == 0) {
+                value = new BigInteger(1, data);
+                return true;
+            }
+
+            int part = p2 & 0x0F;
+            if (part > P2_PART_1)
+                return false;
+
+            parts[part] = data;
+            if (parts[P2_PART_0] != null && parts[P2_PART_1] != null) {
+                byte[] all = Arrays.copyOf(parts[P2_PART_1], parts[P2_PART_1].length + parts[P2_PART_0].length);
+                System.arraycopy(parts[P2_PART_0], 0, all, parts[P2_PART_1].length, parts[P2_PART_0].length);
+                parts[P2_PART_0] = null;
+                parts[P2_PART_1] = null;
+                value = new BigInteger(1, all);
+            }
+
+            return true;
+        }
+
+        boolean isSet() {
+            return value != null;
+        }
+
+        BigInteger get() {
+            return value;
+        }
+
+        void set(BigInteger value) {
+            this.value = value;
+        }
+
+        void clear() {
+            value = null;
+            parts[P2_PART_0] = null;
+            parts[P2_PART_1] = null;
+        }
+    }
+
+    private final byte[] aid;
+
+    /**
+     * Creates an applet with given hex {@code aid}.
+     *
+     * @param aid hex string with the applet ID
+     */
+    SimulatedApplet(String aid) {
+        this.aid = Util.hexStringToByteArray(aid);
+    }
+
+    /**
+     * Returns the applet ID.
+     *
+     * @return byte array with the applet ID
+     */
+    byte[] getAid() {
+        return aid;
+    }
+
+    /**
+     * Processes the given {@code cmd} command.
+     *
+     * @param cmd Command APDU
+     * @return Response APDU
+     */
+    ResponseAPDU process(CommandAPDU cmd) {
+        if (cmd.getCLA() != CLA_RSA_SMPC)
+            return status(SW_CLA_NOT_SUPPORTED);
+
+        return processIns(cmd);
+    }
+
+    /**
+     * Processes the given {@code cmd} command with the applet class.
+     *
+     * @param cmd Command APDU
+     * @return Response APDU
+     */
+    abstract ResponseAPDU processIns(CommandAPDU cmd);
+
+    /**
+     * Returns the response with the given {@code sw} status word and no data.
+     *
+     * @param sw status word
+     * @return Response APDU
+     */
+    static ResponseAPDU status(int sw) {
+        return new ResponseAPDU(new byte[]{(byte) (sw >> 8), (byte) sw});
+    }
+
+    /**
+     * Returns the successful response with the given {@code num} number
+     * encoded to {@code length} bytes.
+     *
+     * @param num    number
+     * @param length length of the encoded number
+     * @return Response APDU
+     */
+    static ResponseAPDU data(BigInteger num, int length) {
+        return data(toBytes(num, length));
+    }
+
+    /**
+     * Returns the successful response with the given {@code data}.
+     *
+     * @param data response data
+     * @return Response APDU
+     */
+    static ResponseAPDU data(byte[] data) {
+        byte[] res = Arrays.copyOf(data, data.length + 2);
+        res[data.length] = (byte) (SW_NO_ERROR >> 8);
+        res[data.length + 1] = (byte) SW_NO_ERROR;
+        return new ResponseAPDU(res);
+    }
+
+    /**
+     * Returns the requested part of the {@code num} number of {@code 2 * PARTIAL_MODULUS_LENGTH}
+     * bytes. The whole number is returned if the command expects it.
+     *
+     * @param cmd Command APDU with the part number in P2
+     * @param num number
+     * @return Response APDU
+     */
+    static ResponseAPDU multipart(CommandAPDU cmd, BigInteger num) {
+        byte[] all = toBytes(num, 2 * PARTIAL_MODULUS_LENGTH);
+
+        if (cmd.getP2() == P2_PART_0 && cmd.getNe() >= all.length)
+            return data(all);
+
+        if (cmd.getP2() == P2_PART_0)
+            return data(Arrays.copyOfRange(all, 0, PARTIAL_MODULUS_LENGTH));
+
+        if (cmd.getP2() == P2_PART_1)
+            return data(Arrays.copyOfRange(all, PARTIAL_MODULUS_LENGTH, all.length));
+
+        return status(SW_WRONG_P1P2);
+    }
+
+    /**
+     * Encodes the given {@code num} number to {@code length} bytes.
+     *
+     * @param num    non-negative number
+     * @param length length of the encoded number
+     * @return big-endian byte array
+     */
+    static byte[] toBytes(BigInteger num, int length) {
+        byte[] raw = num.toByteArray();
+        byte[] res = new byte[length];
+
+        int copied = Math.min(raw.length, length);
+        System.arraycopy(raw, raw.length - copied, res, length - copied, copied);
+        return res;
+    }
+
+    /**
+     * Generates an RSA key with the {@code 8 * PARTIAL_MODULUS_LENGTH}-bit modulus.
+     *
+     * @return array with the modulus, the private exponent and the Euler's totient of the modulus
+     */
+    static BigInteger[] generateKey() {
+        int primeBits = 4 * PARTIAL_MODULUS_LENGTH;
+
+        while (true) {
+            BigInteger p = BigInteger.probablePrime(primeBits, RANDOM);
+            BigInteger q = BigInteger.probablePrime(primeBits, RANDOM);
+            BigInteger n = p.multiply(q);
+            BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+
+            if (p.equals(q) || n.bitLength() != 8 * PARTIAL_MODULUS_LENGTH || !phi.gcd(E).equals(BigInteger.ONE))
+                continue;
+
+            return new BigInteger[]{n, E.modInverse(phi), phi};
+        }
+    }
+
+}
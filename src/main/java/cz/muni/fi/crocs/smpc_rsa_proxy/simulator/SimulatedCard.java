@@ -0,0 +1,144 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.util.Arrays;
+
+/**
+ * The {@link SimulatedCard} class represents a card with all SMPC RSA applets installed.
+ * <p>
+ * The state of the applets is kept in memory for the lifetime of the process,
+ * so it survives reconnecting, but not restarting the proxy.
+ *
+ * @author Lukas Zaoral
+ */
+public class SimulatedCard extends Card {
+
+    /**
+     * ATR announcing the extended length APDU support in the card capabilities
+     */
+    private static final ATR ATR = new ATR(new byte[]{
+            (byte) 0x3B, (byte) 0x85, (byte) 0x80, (byte) 0x01,
+            (byte) 0x80, (byte) 0x73, (byte) 0x00, (byte) 0x00, (byte) 0x40, (byte) 0xB7
+    });
+
+    private static final int CLA_ISO7816 = 0x00;
+    private static final int INS_SELECT = 0xA4;
+    private static final int P1_SELECT_BY_AID = 0x04;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+
+    private final SimulatedApplet[] applets = {
+            new ClientSignApplet(), new ClientFullApplet(), new ServerApplet()
+    };
+
+    private final SimulatedChannel channel = new SimulatedChannel(this);
+
+    private SimulatedApplet selected = null;
+    private int connections = 0;
+
+    @Override
+    public ATR getATR() {
+        return ATR;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        checkConnected();
+        return channel;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+        throw new CardException("Logical channels are not supported.");
+    }
+
+    @Override
+    public void beginExclusive() {
+        checkConnected();
+    }
+
+    @Override
+    public void endExclusive() {
+        checkConnected();
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+        throw new CardException("Control commands are not supported.");
+    }
+
+    @Override
+    public synchronized void disconnect(boolean reset) {
+        if (connections > 0)
+            connections--;
+
+        if (reset)
+            selected = null;
+    }
+
+    /**
+     * Connects the card.
+     *
+     * @return this card
+     */
+    synchronized SimulatedCard connect() {
+        connections++;
+        return this;
+    }
+
+    /**
+     * Removes the card from the reader. All connections are dropped
+     * and the applet has to be selected again after the card is inserted.
+     */
+    synchronized void remove() {
+        connections = 0;
+        selected = null;
+    }
+
+    /**
+     * Checks whether the card is connected.
+     *
+     * @throws IllegalStateException if the card has been disconnected
+     */
+    synchronized void checkConnected() {
+        if (connections == 0)
+            throw new IllegalStateException("Card has been disconnected.");
+    }
+
+    /**
+     * Processes the given {@code cmd} command by the selected applet.
+     *
+     * @param cmd Command APDU
+     * @return Response APDU
+     */
+    synchronized ResponseAPDU process(CommandAPDU cmd) {
+        checkConnected();
+
+        if (cmd.getCLA() == CLA_ISO7816 && cmd.getINS() == INS_SELECT && cmd.getP1() == P1_SELECT_BY_AID) {
+            for (SimulatedApplet applet : applets) {
+                if (Arrays.equals(applet.getAid(), cmd.getData())) {
+                    selected = applet;
+                    return SimulatedApplet.status(SimulatedApplet.SW_NO_ERROR);
+                }
+            }
+
+            return SimulatedApplet.status(SW_FILE_NOT_FOUND);
+        }
+
+        if (selected == null)
+            return SimulatedApplet.status(SimulatedApplet.SW_CONDITIONS_NOT_SATISFIED);
+
+        return selected.process(cmd);
+    }
+
+}
@@ -0,0 +1,64 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link SimulatedChannel} class represents the basic channel of a {@link SimulatedCard}.
+ *
+ * @author Lukas Zaoral
+ */
+class SimulatedChannel extends CardChannel {
+
+    private final SimulatedCard card;
+
+    SimulatedChannel(SimulatedCard card) {
+        this.card = card;
+    }
+
+    @Override
+    public Card getCard() {
+        return card;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        card.checkConnected();
+        return 0;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) {
+        return card.process(command);
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        byte[] cmd = new byte[command.remaining()];
+        command.get(cmd);
+
+        byte[] res;
+        try {
+            res = card.process(new CommandAPDU(cmd)).getBytes();
+        } catch (IllegalArgumentException e) {
+            throw new CardException("Malformed Command APDU.", e);
+        }
+
+        if (response.remaining() < res.length)
+            throw new CardException("Response buffer is too small.");
+
+        response.put(res);
+        return res.length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        throw new IllegalStateException("Basic channel cannot be closed.");
+    }
+
+}
@@ -0,0 +1,175 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.simulator;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@link SimulatedTerminal} class represents a reader
+ * with an inserted {@link SimulatedCard}.
+ * <p>
+ * The card can be removed and inserted again by {@link #setCardPresent(boolean)}
+ * to simulate the hot-plugging. The card keeps the state of its applets.
+ *
+ * @author Lukas Zaoral
+ */
+public class SimulatedTerminal extends CardTerminal {
+
+    private static final List<CardTerminal> TERMINALS = new ArrayList<>();
+
+    /**
+     * Number of the card insertions and removals, guarded by {@code TERMINALS}
+     */
+    private static long changes = 0;
+
+    private final String name;
+    private final SimulatedCard card = new SimulatedCard();
+    private boolean present = true;
+
+    /**
+     * Creates a reader with the given {@code name}.
+     *
+     * @param name reader name
+     */
+    public SimulatedTerminal(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the first {@code count} simulated readers of the process.
+     * The readers are created on the first use, so the state of their cards
+     * is shared by all connections.
+     *
+     * @param count number of readers
+     * @return unmodifiable list of readers
+     */
+    public static List<CardTerminal> list(int count) {
+        synchronized (TERMINALS) {
+            while (TERMINALS.size() < count)
+                TERMINALS.add(new SimulatedTerminal(String.format("Simulated Reader %d", TERMINALS.size())));
+
+            return Collections.unmodifiableList(new ArrayList<>(TERMINALS.subList(0, count)));
+        }
+    }
+
+    /**
+     * Waits until a card of some simulated reader is inserted or removed.
+     *
+     * @param timeout timeout in milliseconds or 0 to wait forever
+     * @return true if a card has been inserted or removed
+     * @throws CardException if interrupted while waiting
+     */
+    public static boolean waitForChange(long timeout) throws CardException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout.");
+
+        synchronized (TERMINALS) {
+            long last = changes;
+            long deadline = System.currentTimeMillis() + timeout;
+
+            try {
+                while (changes == last) {
+                    long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout != 0 && remaining <= 0)
+                        return false;
+
+                    TERMINALS.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Waiting interrupted.", e);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Inserts or removes the card. The connections to a removed card fail.
+     *
+     * @param present true to insert the card, false to remove it
+     */
+    public void setCardPresent(boolean present) {
+        synchronized (TERMINALS) {
+            if (this.present == present)
+                return;
+
+            this.present = present;
+            if (!present)
+                card.remove();
+
+            changes++;
+            TERMINALS.notifyAll();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Card connect(String protocol) throws CardException {
+        if (!isCardPresent())
+            throw new CardException("No card present.");
+
+        if (!protocol.equals("*") && !protocol.equals(card.getProtocol()))
+            throw new CardException(String.format("Protocol '%s' is not supported.", protocol));
+
+        return card.connect();
+    }
+
+    @Override
+    public boolean isCardPresent() {
+        synchronized (TERMINALS) {
+            return present;
+        }
+    }
+
+    @Override
+    public boolean waitForCardPresent(long timeout) throws CardException {
+        return waitForPresence(true, timeout);
+    }
+
+    @Override
+    public boolean waitForCardAbsent(long timeout) throws CardException {
+        return waitForPresence(false, timeout);
+    }
+
+    /**
+     * Waits until the card is inserted or removed.
+     *
+     * @param present true to wait for the insertion, false for the removal
+     * @param timeout timeout in milliseconds or 0 to wait forever
+     * @return true if the card presence is as requested
+     * @throws CardException if interrupted while waiting
+     */
+    private boolean waitForPresence(boolean present, long timeout) throws CardException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout.");
+
+        synchronized (TERMINALS) {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            try {
+                while (this.present != present) {
+                    long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout != 0 && remaining <= 0)
+                        return false;
+
+                    TERMINALS.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Waiting interrupted.", e);
+            }
+
+            return true;
+        }
+    }
+
+}
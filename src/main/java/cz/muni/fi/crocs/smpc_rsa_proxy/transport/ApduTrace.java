@@ -0,0 +1,210 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The {@link ApduTrace} class represents the binary format of recorded
+ * APDU exchanges of a single card connection.
+ * <p>
+ * All numbers are big-endian. The trace starts with the header
+ * <pre>
+ *     int   MAGIC
+ *     byte  VERSION
+ *     short length of the ATR historical bytes
+ *     byte[] ATR historical bytes
+ * </pre>
+ * followed by the exchanges until the end of the file
+ * <pre>
+ *     long  start of the exchange since the start of the trace in nanoseconds
+ *     long  duration of the exchange in nanoseconds
+ *     int   length of the Command APDU
+ *     byte[] Command APDU
+ *     int   length of the Response APDU
+ *     byte[] Response APDU
+ * </pre>
+ * The traces are recorded by the card manager with the {@code CardManager.RECORD_PROPERTY}
+ * property and replayed by the {@link ReplayProvider}.
+ *
+ * @author Lukas Zaoral
+ */
+public final class ApduTrace {
+
+    /**
+     * Magic number of the trace, "SMTR"
+     */
+    public static final int MAGIC = 0x534D5452;
+
+    /**
+     * Version of the format
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Maximal length of a recorded APDU
+     */
+    private static final int MAX_APDU_LENGTH = 65544;
+
+    private ApduTrace() {
+    }
+
+    /**
+     * The {@link Entry} class represents a single recorded exchange.
+     */
+    public static class Entry {
+        public final long start;
+        public final long duration;
+        public final byte[] command;
+        public final byte[] response;
+
+        public Entry(long start, long duration, byte[] command, byte[] response) {
+            this.start = start;
+            this.duration = duration;
+            this.command = command;
+            this.response = response;
+        }
+    }
+
+    /**
+     * The {@link Reader} class reads the trace sequentially.
+     */
+    public static class Reader implements Closeable {
+        private final String fileName;
+        private final DataInputStream in;
+        private final byte[] historicalBytes;
+
+        /**
+         * Opens the trace and reads its header.
+         *
+         * @param fileName file name
+         * @throws IOException if the file cannot be read or has a wrong format
+         */
+        public Reader(String fileName) throws IOException {
+            this.fileName = fileName;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+
+            try {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION)
+                    throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+                historicalBytes = readBytes(in.readUnsignedShort());
+            } catch (IOException e) {
+                in.close();
+                throw e instanceof EOFException
+                        ? new IOException(String.format("Wrong '%s' file format.", fileName)) : e;
+            }
+        }
+
+        /**
+         * Returns the recorded historical bytes of the card ATR.
+         *
+         * @return historical bytes
+         */
+        public byte[] getHistoricalBytes() {
+            return historicalBytes;
+        }
+
+        /**
+         * Reads the next exchange.
+         *
+         * @return exchange or null at the end of the trace
+         * @throws IOException if the file cannot be read or has a wrong format
+         */
+        public Entry next() throws IOException {
+            long start;
+            try {
+                start = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            try {
+                long duration = in.readLong();
+                byte[] command = readBytes(in.readInt());
+                byte[] response = readBytes(in.readInt());
+                return new Entry(start, duration, command, response);
+            } catch (EOFException e) {
+                throw new IOException(String.format("Wrong '%s' file format.", fileName));
+            }
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0 || length > MAX_APDU_LENGTH)
+                throw new IOException(String.format("Wrong '%s' file format.", fileName));
+
+            byte[] res = new byte[length];
+            in.readFully(res);
+            return res;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The {@link Writer} class records the exchanges of a single connection.
+     * Each exchange is flushed immediately, so the trace is complete
+     * even if the process is killed.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long origin = System.nanoTime();
+
+        /**
+         * Creates the trace and writes its header.
+         *
+         * @param fileName        file name
+         * @param historicalBytes historical bytes of the card ATR
+         * @throws IOException if the file cannot be created or written to
+         */
+        public Writer(String fileName, byte[] historicalBytes) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeShort(historicalBytes.length);
+                out.write(historicalBytes);
+                out.flush();
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Records a finished exchange.
+         *
+         * @param start    start of the exchange as given by {@link System#nanoTime()}
+         * @param duration duration of the exchange in nanoseconds
+         * @param command  Command APDU
+         * @param response Response APDU
+         * @throws IOException if the file cannot be written to
+         */
+        public synchronized void write(long start, long duration, byte[] command, byte[] response)
+                throws IOException {
+            out.writeLong(start - origin);
+            out.writeLong(duration);
+            out.writeInt(command.length);
+            out.write(command);
+            out.writeInt(response.length);
+            out.write(response);
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
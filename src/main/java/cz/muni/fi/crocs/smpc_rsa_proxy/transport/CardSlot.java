@@ -0,0 +1,36 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The {@link CardSlot} interface represents a reader
+ * which may hold a card.
+ *
+ * @author Lukas Zaoral
+ */
+public interface CardSlot {
+
+    /**
+     * Returns the name of the reader.
+     *
+     * @return name
+     */
+    String getName();
+
+    /**
+     * Checks whether a card is present in the reader.
+     *
+     * @return true if the card is present
+     * @throws CardException if the state cannot be checked
+     */
+    boolean isCardPresent() throws CardException;
+
+    /**
+     * Connects to the card in the reader.
+     *
+     * @return connection to the card
+     * @throws CardException if the connection fails
+     */
+    CardTransport connect() throws CardException;
+
+}
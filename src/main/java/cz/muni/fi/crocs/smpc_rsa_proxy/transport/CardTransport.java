@@ -0,0 +1,45 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * The {@link CardTransport} interface represents a connection
+ * to a single card used by the {@code CardManager}.
+ *
+ * @author Lukas Zaoral
+ */
+public interface CardTransport {
+
+    /**
+     * Returns the name of the reader or the remote card.
+     *
+     * @return name
+     */
+    String getName();
+
+    /**
+     * Returns the historical bytes of the card ATR.
+     *
+     * @return historical bytes
+     */
+    byte[] getHistoricalBytes();
+
+    /**
+     * Transmits the given Command APDU to the card.
+     *
+     * @param cmd Command APDU
+     * @return Response APDU
+     * @throws CardException if the exchange fails
+     */
+    ResponseAPDU transmit(CommandAPDU cmd) throws CardException;
+
+    /**
+     * Disconnects from the card.
+     *
+     * @throws CardException if the disconnection fails
+     */
+    void close() throws CardException;
+
+}
@@ -0,0 +1,76 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * The {@link RelayProtocol} class holds the constants of the binary protocol
+ * between the {@link TcpProvider} and the {@link RelayServer}.
+ * <p>
+ * The client starts with the {@code MAGIC} number and the {@code VERSION}
+ * and sends the requests, one byte operation code with arguments. The server
+ * responds with the {@code STATUS_OK} byte and the results, or with
+ * the {@code STATUS_ERROR} byte and the UTF error message:
+ * <pre>
+ *     OP_LIST                       -> int count, count * (UTF name, boolean present)
+ *     OP_CONNECT UTF name           -> short length, historical bytes
+ *     OP_TRANSMIT int length, APDU  -> int length, Response APDU
+ *     OP_CLOSE                      -> (nothing)
+ * </pre>
+ * Each connection holds at most one connected card.
+ *
+ * @author Lukas Zaoral
+ */
+final class RelayProtocol {
+
+    /**
+     * Default port of the relay
+     */
+    static final int DEFAULT_PORT = 7313;
+
+    /**
+     * Magic number of the protocol, "SMRL"
+     */
+    static final int MAGIC = 0x534D524C;
+    static final byte VERSION = 1;
+
+    /**
+     * Operation codes
+     */
+    static final byte OP_LIST = 0x01;
+    static final byte OP_CONNECT = 0x02;
+    static final byte OP_TRANSMIT = 0x03;
+    static final byte OP_CLOSE = 0x04;
+
+    /**
+     * Response status bytes
+     */
+    static final byte STATUS_OK = 0x00;
+    static final byte STATUS_ERROR = 0x01;
+
+    /**
+     * Maximal length of an APDU
+     */
+    private static final int MAX_APDU_LENGTH = 65544;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * Reads a length prefixed APDU.
+     *
+     * @param in input stream
+     * @return APDU bytes
+     * @throws IOException if the stream cannot be read or the length is invalid
+     */
+    static byte[] readApdu(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_APDU_LENGTH)
+            throw new IOException("Wrong APDU length.");
+
+        byte[] apdu = new byte[length];
+        in.readFully(apdu);
+        return apdu;
+    }
+
+}
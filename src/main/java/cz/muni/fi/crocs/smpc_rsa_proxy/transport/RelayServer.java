@@ -0,0 +1,170 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.List;
+
+/**
+ * The {@link RelayServer} class exposes the readers of a {@link TransportProvider}
+ * to the remote proxies using the {@link TcpProvider}.
+ * <p>
+ * The relay does not authenticate its clients, so it should listen only
+ * on the loopback or a trusted network interface, e.g. behind an SSH tunnel.
+ *
+ * @author Lukas Zaoral
+ */
+public class RelayServer {
+
+    /**
+     * Default port of the relay
+     */
+    public static final int DEFAULT_PORT = RelayProtocol.DEFAULT_PORT;
+
+    private final TransportProvider provider;
+    private final ServerSocket serverSocket;
+
+    /**
+     * Creates a relay of the readers of the given {@code provider}.
+     *
+     * @param provider provider of the exposed readers
+     * @param address  address to listen on
+     * @param port     port to listen on
+     * @throws IOException if the socket cannot be opened
+     */
+    public RelayServer(TransportProvider provider, InetAddress address, int port) throws IOException {
+        this.provider = provider;
+        this.serverSocket = new ServerSocket(port, 50, address);
+    }
+
+    /**
+     * Accepts and serves the clients until the socket fails.
+     *
+     * @throws IOException if the socket fails
+     */
+    public void run() throws IOException {
+        System.out.printf("Relaying the cards on %s:%d%n", serverSocket.getInetAddress().getHostAddress(),
+                serverSocket.getLocalPort());
+
+        while (true) {
+            Socket client = serverSocket.accept();
+            Thread worker = new Thread(() -> serve(client), "relay-client");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Serves all requests of the given {@code client}.
+     *
+     * @param client client socket
+     */
+    private void serve(Socket client) {
+        CardTransport card = null;
+
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readInt() != RelayProtocol.MAGIC || in.readByte() != RelayProtocol.VERSION)
+                return;
+
+            while (true) {
+                byte op = in.readByte();
+                try {
+                    switch (op) {
+                        case RelayProtocol.OP_LIST:
+                            List<CardSlot> slots = provider.list();
+                            out.writeByte(RelayProtocol.STATUS_OK);
+                            out.writeInt(slots.size());
+                            for (CardSlot s : slots) {
+                                out.writeUTF(s.getName());
+                                out.writeBoolean(s.isCardPresent());
+                            }
+                            break;
+
+                        case RelayProtocol.OP_CONNECT:
+                            String name = in.readUTF();
+                            if (card != null)
+                                throw new CardException("The card is already connected.");
+
+                            card = connect(name);
+                            byte[] historical = card.getHistoricalBytes();
+                            out.writeByte(RelayProtocol.STATUS_OK);
+                            out.writeShort(historical.length);
+                            out.write(historical);
+                            break;
+
+                        case RelayProtocol.OP_TRANSMIT:
+                            byte[] cmd = RelayProtocol.readApdu(in);
+                            if (card == null)
+                                throw new CardException("The card is not connected.");
+
+                            byte[] res = card.transmit(new CommandAPDU(cmd)).getBytes();
+                            out.writeByte(RelayProtocol.STATUS_OK);
+                            out.writeInt(res.length);
+                            out.write(res);
+                            break;
+
+                        case RelayProtocol.OP_CLOSE:
+                            if (card != null) {
+                                CardTransport closed = card;
+                                card = null;
+                                closed.close();
+                            }
+
+                            out.writeByte(RelayProtocol.STATUS_OK);
+                            out.flush();
+                            return;
+
+                        default:
+                            throw new CardException(String.format("Unknown operation %02X.", op));
+                    }
+                } catch (CardException | IllegalArgumentException e) {
+                    out.writeByte(RelayProtocol.STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client has disconnected
+        } finally {
+            if (card != null) {
+                try {
+                    card.close();
+                } catch (CardException e) {
+                    // the card has been removed
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the card in the reader with the given {@code name}.
+     *
+     * @param name reader name
+     * @return connected card
+     * @throws CardException if the reader does not exist or the connection fails
+     */
+    private CardTransport connect(String name) throws CardException {
+        for (CardSlot s : provider.list()) {
+            if (s.getName().equals(name))
+                return s.connect();
+        }
+
+        throw new CardException(String.format("Reader '%s' does not exist.", name));
+    }
+
+}
@@ -0,0 +1,151 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.cardTools.Util;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@link ReplayProvider} class represents a single reader replaying
+ * the responses of an {@link ApduTrace}.
+ * <p>
+ * The sent commands have to match the recorded ones in the recorded order,
+ * so the trace can be replayed only by the same sequence of actions.
+ * <p>
+ * The responses are returned immediately by default. With the {@code REPLAY_DELAY_PROPERTY}
+ * property, each response is returned after the recorded duration of the exchange,
+ * so the host-side changes can be benchmarked against the real card timing without a reader.
+ *
+ * @author Lukas Zaoral
+ */
+public class ReplayProvider implements TransportProvider {
+
+    /**
+     * System property enabling the recorded delays of the responses,
+     * {@code off} (default) or {@code on}
+     */
+    public static final String REPLAY_DELAY_PROPERTY = "smpc.replayDelay";
+
+    private final String fileName;
+    private final boolean delayed = System.getProperty(REPLAY_DELAY_PROPERTY, "off").equals("on");
+
+    /**
+     * Creates a provider replaying the {@code fileName} trace.
+     *
+     * @param fileName trace file name
+     */
+    public ReplayProvider(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public List<CardSlot> list() {
+        return Collections.singletonList(new CardSlot() {
+            @Override
+            public String getName() {
+                return "Replay " + fileName;
+            }
+
+            @Override
+            public boolean isCardPresent() {
+                return new File(fileName).isFile();
+            }
+
+            @Override
+            public CardTransport connect() throws CardException {
+                try {
+                    return new Transport(getName(), new ApduTrace.Reader(fileName), delayed);
+                } catch (IOException e) {
+                    throw new CardException(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The {@link Transport} class represents a connection replaying the trace.
+     */
+    private static class Transport implements CardTransport {
+        private final String name;
+        private final ApduTrace.Reader reader;
+        private final boolean delayed;
+        private int index = 0;
+
+        Transport(String name, ApduTrace.Reader reader, boolean delayed) {
+            this.name = name;
+            this.reader = reader;
+            this.delayed = delayed;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public byte[] getHistoricalBytes() {
+            return reader.getHistoricalBytes();
+        }
+
+        @Override
+        public synchronized ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+            long start = System.nanoTime();
+            ApduTrace.Entry entry;
+            try {
+                entry = reader.next();
+            } catch (IOException e) {
+                throw new CardException(e.getMessage(), e);
+            }
+
+            if (entry == null)
+                throw new CardException(String.format("The trace has ended after %d commands.", index));
+
+            if (!Arrays.equals(entry.command, cmd.getBytes()))
+                throw new CardException(String.format("Command %d does not match the trace, expected %s.",
+                        index, Util.toHex(entry.command)));
+
+            index++;
+            if (delayed)
+                waitUntil(start + entry.duration);
+
+            return new ResponseAPDU(entry.response);
+        }
+
+        /**
+         * Waits until the given {@code deadline} of {@link System#nanoTime()}.
+         * Parking is more precise than sleeping for the sub-millisecond exchanges.
+         *
+         * @param deadline time to wait for
+         * @throws CardException if interrupted
+         */
+        private static void waitUntil(long deadline) throws CardException {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new CardException("Replay interrupted.");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws CardException {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new CardException(e.getMessage(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link TcpProvider} class represents the readers of a remote {@link RelayServer}.
+ *
+ * @author Lukas Zaoral
+ */
+public class TcpProvider implements TransportProvider {
+
+    /**
+     * System property with the timeout of a relay response in milliseconds,
+     * it has to cover the longest card operation, i.e. the key generation
+     */
+    public static final String READ_TIMEOUT_PROPERTY = "smpc.relayTimeout";
+
+    /**
+     * Timeout of the connection to the relay in milliseconds
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Default timeout of a relay response in milliseconds
+     */
+    private static final int DEFAULT_READ_TIMEOUT = 120000;
+
+    private final String host;
+    private final int port;
+    private final int readTimeout;
+
+    /**
+     * Creates a provider of the readers of the relay at given {@code host} and {@code port}.
+     *
+     * @param host relay host
+     * @param port relay port
+     */
+    public TcpProvider(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.readTimeout = Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Creates a provider of the readers of the relay at given {@code address}.
+     *
+     * @param address relay address in the {@code host[:port]} format
+     * @return provider
+     * @throws IllegalArgumentException if the port is invalid
+     */
+    static TcpProvider forAddress(String address) {
+        int sep = address.lastIndexOf(':');
+        if (sep < 0)
+            return new TcpProvider(address, RelayProtocol.DEFAULT_PORT);
+
+        int port = Integer.parseInt(address.substring(sep + 1));
+        if (port <= 0 || port > 0xFFFF)
+            throw new IllegalArgumentException("Wrong port.");
+
+        return new TcpProvider(address.substring(0, sep), port);
+    }
+
+    @Override
+    public List<CardSlot> list() throws CardException {
+        List<CardSlot> slots = new ArrayList<>();
+
+        try (Connection c = new Connection()) {
+            c.out.writeByte(RelayProtocol.OP_LIST);
+            c.out.flush();
+            c.checkStatus();
+
+            int count = c.in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = c.in.readUTF();
+                boolean present = c.in.readBoolean();
+                slots.add(new Slot(name, present));
+            }
+        } catch (IOException e) {
+            throw new CardException(String.format("Relay %s:%d failed: %s", host, port, e.getMessage()), e);
+        }
+
+        return slots;
+    }
+
+    /**
+     * The {@link Connection} class represents a connection to the relay.
+     */
+    private class Connection implements AutoCloseable {
+        final Socket socket = new Socket();
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection() throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeout);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                out.writeInt(RelayProtocol.MAGIC);
+                out.writeByte(RelayProtocol.VERSION);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the response status.
+         *
+         * @throws IOException if the relay reports an error
+         */
+        void checkStatus() throws IOException {
+            if (in.readByte() != RelayProtocol.STATUS_OK)
+                throw new IOException(in.readUTF());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * The {@link Slot} class represents a remote reader.
+     */
+    private class Slot implements CardSlot {
+        private final String name;
+        private final boolean present;
+
+        Slot(String name, boolean present) {
+            this.name = name;
+            this.present = present;
+        }
+
+        @Override
+        public String getName() {
+            return String.format("%s:%d/%s", host, port, name);
+        }
+
+        @Override
+        public boolean isCardPresent() {
+            return present;
+        }
+
+        @Override
+        public CardTransport connect() throws CardException {
+            Connection c = null;
+            try {
+                c = new Connection();
+                c.out.writeByte(RelayProtocol.OP_CONNECT);
+                c.out.writeUTF(name);
+                c.out.flush();
+                c.checkStatus();
+
+                byte[] historical = new byte[c.in.readUnsignedShort()];
+                c.in.readFully(historical);
+                return new Transport(getName(), c, historical);
+            } catch (IOException e) {
+                try {
+                    if (c != null)
+                        c.close();
+                } catch (IOException ignored) {
+                    // already failed
+                }
+
+                throw new CardException(String.format("Relay %s failed: %s", getName(), e.getMessage()), e);
+            }
+        }
+    }
+
+    /**
+     * The {@link Transport} class represents a remote card connection.
+     */
+    private static class Transport implements CardTransport {
+        private final String name;
+        private final Connection connection;
+        private final byte[] historicalBytes;
+
+        Transport(String name, Connection connection, byte[] historicalBytes) {
+            this.name = name;
+            this.connection = connection;
+            this.historicalBytes = historicalBytes;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public byte[] getHistoricalBytes() {
+            return historicalBytes.clone();
+        }
+
+        @Override
+        public synchronized ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+            try {
+                byte[] bytes = cmd.getBytes();
+                connection.out.writeByte(RelayProtocol.OP_TRANSMIT);
+                connection.out.writeInt(bytes.length);
+                connection.out.write(bytes);
+                connection.out.flush();
+                connection.checkStatus();
+
+                return new ResponseAPDU(RelayProtocol.readApdu(connection.in));
+            } catch (SocketTimeoutException e) {
+                // a late response would be taken as the response of the next command
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // already failed
+                }
+
+                throw new TransportException(String.format("Relay %s timed out.", name), e);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CardException(String.format("Relay %s failed: %s", name, e.getMessage()), e);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws CardException {
+            try (Connection c = connection) {
+                c.out.writeByte(RelayProtocol.OP_CLOSE);
+                c.out.flush();
+                c.checkStatus();
+            } catch (IOException e) {
+                throw new CardException(String.format("Relay %s failed: %s", name, e.getMessage()), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import cz.muni.fi.crocs.smpc_rsa_proxy.simulator.SimulatedTerminal;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link TerminalProvider} class represents the readers
+ * accessible through the {@code javax.smartcardio} API, i.e. the PC/SC
+ * and the simulated readers.
+ *
+ * @author Lukas Zaoral
+ */
+public class TerminalProvider implements TransportProvider {
+
+    /**
+     * The {@link Lister} interface represents a source of the terminals.
+     */
+    @FunctionalInterface
+    private interface Lister {
+        List<CardTerminal> list() throws CardException;
+    }
+
+    /**
+     * The {@link Waiter} interface represents a source of the terminal change notifications.
+     */
+    @FunctionalInterface
+    private interface Waiter {
+        boolean waitForChange(long timeout) throws CardException;
+    }
+
+    private final Lister lister;
+    private final Waiter waiter;
+
+    private TerminalProvider(Lister lister, Waiter waiter) {
+        this.lister = lister;
+        this.waiter = waiter;
+    }
+
+    /**
+     * Returns the provider of the readers of the given PC/SC {@code factory}.
+     *
+     * @param factory terminal factory
+     * @return provider
+     */
+    public static TerminalProvider pcsc(TerminalFactory factory) {
+        // the changes are reported relatively to the previous call on the same instance
+        CardTerminals terminals = factory.terminals();
+        return new TerminalProvider(terminals::list, terminals::waitForChange);
+    }
+
+    /**
+     * Returns the provider of the {@code count} simulated readers.
+     *
+     * @param count number of readers
+     * @return provider
+     */
+    public static TerminalProvider simulator(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("Wrong number of simulated readers.");
+
+        return new TerminalProvider(() -> SimulatedTerminal.list(count), SimulatedTerminal::waitForChange);
+    }
+
+    @Override
+    public List<CardSlot> list() throws CardException {
+        List<CardSlot> slots = new ArrayList<>();
+        for (CardTerminal t : lister.list())
+            slots.add(new Slot(t));
+
+        return slots;
+    }
+
+    @Override
+    public boolean waitForChange(long timeout) throws CardException {
+        return waiter.waitForChange(timeout);
+    }
+
+    /**
+     * The {@link Slot} class represents a single terminal.
+     */
+    private static class Slot implements CardSlot {
+        private final CardTerminal terminal;
+
+        Slot(CardTerminal terminal) {
+            this.terminal = terminal;
+        }
+
+        @Override
+        public String getName() {
+            return terminal.getName();
+        }
+
+        @Override
+        public boolean isCardPresent() throws CardException {
+            return terminal.isCardPresent();
+        }
+
+        @Override
+        public CardTransport connect() throws CardException {
+            return new Transport(terminal.getName(), terminal.connect("*"));
+        }
+    }
+
+    /**
+     * The {@link Transport} class represents the basic channel of a connected card.
+     */
+    private static class Transport implements CardTransport {
+        private final String name;
+        private final Card card;
+        private final CardChannel channel;
+
+        Transport(String name, Card card) {
+            this.name = name;
+            this.card = card;
+            this.channel = card.getBasicChannel();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public byte[] getHistoricalBytes() {
+            return card.getATR().getHistoricalBytes();
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+            return channel.transmit(cmd);
+        }
+
+        @Override
+        public void close() throws CardException {
+            card.disconnect(false);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The {@link TransportException} class represents a failure of the exchange
+ * with the card itself, e.g. a removed card or a lost connection, as opposed
+ * to an error status word returned by the applet.
+ * <p>
+ * The connection has to be reestablished before the card can be used again.
+ *
+ * @author Lukas Zaoral
+ */
+public class TransportException extends CardException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Wraps the given {@code cause} of the failure.
+     *
+     * @param cause original exception
+     */
+    public TransportException(Throwable cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * Wraps the given {@code cause} of the failure with the given {@code message}.
+     *
+     * @param message detail message
+     * @param cause   original exception
+     */
+    public TransportException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
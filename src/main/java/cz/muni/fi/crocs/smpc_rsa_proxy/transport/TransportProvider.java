@@ -0,0 +1,104 @@
+package cz.muni.fi.crocs.smpc_rsa_proxy.transport;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.TerminalFactory;
+
+import java.util.List;
+
+/**
+ * The {@link TransportProvider} interface represents a source of card readers.
+ * <p>
+ * The provider is selected by the {@code TRANSPORT_PROPERTY} system property:
+ * <pre>
+ *     pcsc             PC/SC readers (default)
+ *     sim[:count]      simulated readers (default 1)
+ *     replay:file      recorded APDU trace
+ *     tcp:host[:port]  readers of a remote relay (default port 7313)
+ * </pre>
+ *
+ * @author Lukas Zaoral
+ */
+public interface TransportProvider {
+
+    /**
+     * System property selecting the transport
+     */
+    String TRANSPORT_PROPERTY = "smpc.transport";
+
+    /**
+     * Lists the available readers.
+     *
+     * @return list of readers
+     * @throws CardException if the readers cannot be listed
+     */
+    List<CardSlot> list() throws CardException;
+
+    /**
+     * Waits until a reader or a card is added or removed. The providers without
+     * the change notifications wait for the whole {@code timeout}, so the readers are polled.
+     *
+     * @param timeout timeout in milliseconds
+     * @return true if the readers may have changed
+     * @throws CardException if waiting fails or is interrupted
+     */
+    default boolean waitForChange(long timeout) throws CardException {
+        try {
+            Thread.sleep(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Waiting interrupted.", e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the provider selected by the {@code TRANSPORT_PROPERTY} system property.
+     *
+     * @return selected provider
+     * @throws CardException if the property value is invalid
+     */
+    static TransportProvider getDefault() throws CardException {
+        return forName(System.getProperty(TRANSPORT_PROPERTY, "pcsc"));
+    }
+
+    /**
+     * Returns the provider with the given {@code spec} specification.
+     *
+     * @param spec provider specification
+     * @return provider
+     * @throws CardException if the specification is invalid
+     */
+    static TransportProvider forName(String spec) throws CardException {
+        int sep = spec.indexOf(':');
+        String type = sep < 0 ? spec : spec.substring(0, sep);
+        String arg = sep < 0 ? null : spec.substring(sep + 1);
+
+        try {
+            switch (type) {
+                case "pcsc":
+                    if (arg == null)
+                        return TerminalProvider.pcsc(TerminalFactory.getDefault());
+                    break;
+
+                case "sim":
+                    return TerminalProvider.simulator(arg == null ? 1 : Integer.parseInt(arg));
+
+                case "replay":
+                    if (arg != null && !arg.isEmpty())
+                        return new ReplayProvider(arg);
+                    break;
+
+                case "tcp":
+                    if (arg != null && !arg.isEmpty())
+                        return TcpProvider.forAddress(arg);
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            // invalid number
+        }
+
+        throw new CardException(String.format("Wrong transport '%s'.", spec));
+    }
+
+}